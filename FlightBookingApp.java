@@ -1,9 +1,20 @@
+import cache.lru.WriteAheadLog;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class FlightBookingApp {
     /*
@@ -15,35 +26,97 @@ public class FlightBookingApp {
      - book flights
      */
 
-    public static class FlightBookingService
+    /*
+    With a data directory, every change is written to a WriteAheadLog before the call returns
+    and the service comes back from the latest snapshot plus the log after it on restart.
+    Users, flights and connections are logged and then changed under the service's monitor,
+    which snapshots also hold, so they replay exactly, and a change the log fails to write is
+    never applied. Seats are logged under their flight's lock with their seat number, and
+    replay skips seats a flight already has. A seat is taken before its record is on disk, so
+    other bookings need not wait for the fsync, and given back if the write fails; a
+    checkpoint that reads it in the meantime publishes its snapshot only once the seat is on
+    disk, and not at all if the write fails.
+    Every flight object gets a serial, its position in creation order, so a seat is replayed
+    onto the same object even after a connection has taken over its flight id.
+    */
+    public static class FlightBookingService implements WriteAheadLog.Encoder, AutoCloseable
     {
+        private static final byte USER_ADDED = 1;
+        private static final byte FLIGHT_ADDED = 2;
+        private static final byte CONNECTION_ADDED = 3;
+        static final byte SEAT_BOOKED = 4;
+
         Map<String,User> userIdVsUserMap;
         Map<String,List<Flight>> flightDirectionVsFlightMap;
         Map<String,Flight> flightIdVsFlightMap;
+        List<Flight> flights; // every flight object, indexed by serial
+        private WriteAheadLog log; // null keeps everything in memory only
 
         public FlightBookingService()
         {
             this.userIdVsUserMap = new HashMap<>();
             this.flightIdVsFlightMap = new HashMap<>();
             this.flightDirectionVsFlightMap = new HashMap<>();
+            this.flights = new ArrayList<>();
         }
 
-        public void addFlight(String flightId, String airLineName, String origin, String destination, int maxCapacity)
+        // snapshotIntervalMillis <= 0 leaves snapshots to explicit checkpoint calls
+        public FlightBookingService(Path dataDirectory, long snapshotIntervalMillis) throws IOException
+        {
+            this();
+            WriteAheadLog recovered = new WriteAheadLog(dataDirectory, this::readSnapshot, this::replay, this);
+            synchronized (this) {
+                this.log = recovered;
+                for (Flight flight : flights) {
+                    flight.log = recovered;
+                }
+            }
+            if (snapshotIntervalMillis > 0) {
+                recovered.scheduleSnapshots(snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        public synchronized void addFlight(String flightId, String airLineName, String origin, String destination, int maxCapacity)
+        {
+            if (log != null) {
+                log.append(FLIGHT_ADDED, out -> {
+                    WriteAheadLog.writeString(out, flightId);
+                    WriteAheadLog.writeString(out, airLineName);
+                    WriteAheadLog.writeString(out, origin);
+                    WriteAheadLog.writeString(out, destination);
+                    out.writeInt(maxCapacity);
+                }).join();
+            }
+            applyAddFlight(flightId, airLineName, origin, destination, maxCapacity);
+        }
+
+        private Flight applyAddFlight(String flightId, String airLineName, String origin, String destination, int maxCapacity)
         {
             Flight flight = new Flight(flightId, airLineName, origin, destination, maxCapacity);
+            flight.serial = flights.size();
+            flight.log = log;
+            flights.add(flight);
             String flightDirection = origin+"->"+destination;
             flightDirectionVsFlightMap.putIfAbsent(flightDirection, new ArrayList<>());
             flightDirectionVsFlightMap.get(flightDirection).add(flight);
             flightIdVsFlightMap.put(flightId, flight);
+            return flight;
         }
 
-        public void addUser(String id,String name, String email)
+        public synchronized void addUser(String id,String name, String email)
         {
             if(userIdVsUserMap.containsKey(id))
             {
                 System.out.println("USer already exists in the system. Cannot add!");
                 return;
             }
+            if (log != null) {
+                log.append(USER_ADDED, out -> {
+                    WriteAheadLog.writeString(out, id);
+                    WriteAheadLog.writeString(out, name);
+                    WriteAheadLog.writeString(out, email);
+                }).join();
+            }
             User user = new User(id, name, email);
             this.userIdVsUserMap.put(id, user);
         }
@@ -79,23 +152,166 @@ public class FlightBookingApp {
             Flight flight = flightIdVsFlightMap.get(flightId);
             return flight.book(user);
         }
-        public void addConnectingFlight(String firstFlightId, String secondFlightId) {
+        public synchronized void addConnectingFlight(String firstFlightId, String secondFlightId) {
             if (!flightIdVsFlightMap.containsKey(firstFlightId) || !flightIdVsFlightMap.containsKey(secondFlightId)) {
                 System.out.println("Invalid flight IDs");
                 return;
             }
+            if (log != null) {
+                log.append(CONNECTION_ADDED, out -> {
+                    WriteAheadLog.writeString(out, firstFlightId);
+                    WriteAheadLog.writeString(out, secondFlightId);
+                }).join();
+            }
+            applyConnectingFlight(firstFlightId, secondFlightId);
+        }
 
+        private void applyConnectingFlight(String firstFlightId, String secondFlightId) {
             Flight firstFlight = flightIdVsFlightMap.get(firstFlightId);
             Flight secondFlight = flightIdVsFlightMap.get(secondFlightId);
 //            firstFlight.addConnectingFlight(secondFlight);
 
             // this connecting flight shouldn't disturb the direct flights. and this should be a separate info for users
-            addFlight(firstFlight.getFlightId(),firstFlight.getAirLineName(),
+            // (not through addFlight, which would log the flight again next to the connection)
+            applyAddFlight(firstFlight.getFlightId(),firstFlight.getAirLineName(),
                     firstFlight.origin, secondFlight.destination, firstFlight.maxCapacity);
             Flight flight = flightIdVsFlightMap.get(firstFlightId);
             flight.addConnectingFlight(firstFlight);
             flight.addConnectingFlight(secondFlight);
         }
+
+        public void checkpoint() throws IOException
+        {
+            if (log != null) {
+                log.checkpoint();
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            if (log != null) {
+                log.close();
+            }
+        }
+
+        // the snapshot: users, every flight object with its seats and connections, then the two indexes
+        @Override
+        public synchronized void write(DataOutputStream out) throws IOException
+        {
+            out.writeInt(userIdVsUserMap.size());
+            for (User user : userIdVsUserMap.values()) {
+                WriteAheadLog.writeString(out, user.id);
+                WriteAheadLog.writeString(out, user.name);
+                WriteAheadLog.writeString(out, user.email);
+            }
+            out.writeInt(flights.size());
+            for (Flight flight : flights) {
+                WriteAheadLog.writeString(out, flight.flightId);
+                WriteAheadLog.writeString(out, flight.airLineName);
+                WriteAheadLog.writeString(out, flight.origin);
+                WriteAheadLog.writeString(out, flight.destination);
+                out.writeInt(flight.maxCapacity);
+                flight.lock.lock();
+                try {
+                    out.writeInt(flight.bookings.size());
+                    for (Booking booking : flight.bookings) {
+                        WriteAheadLog.writeString(out, booking.userId);
+                        WriteAheadLog.writeString(out, booking.seat);
+                    }
+                }
+                finally {
+                    flight.lock.unlock();
+                }
+                out.writeInt(flight.subFlights.size());
+                for (Flight subFlight : flight.subFlights) {
+                    out.writeInt(subFlight.serial);
+                }
+            }
+            out.writeInt(flightDirectionVsFlightMap.size());
+            for (Map.Entry<String, List<Flight>> entry : flightDirectionVsFlightMap.entrySet()) {
+                WriteAheadLog.writeString(out, entry.getKey());
+                out.writeInt(entry.getValue().size());
+                for (Flight flight : entry.getValue()) {
+                    out.writeInt(flight.serial);
+                }
+            }
+            out.writeInt(flightIdVsFlightMap.size());
+            for (Map.Entry<String, Flight> entry : flightIdVsFlightMap.entrySet()) {
+                WriteAheadLog.writeString(out, entry.getKey());
+                out.writeInt(entry.getValue().serial);
+            }
+        }
+
+        private void readSnapshot(ByteBuffer in)
+        {
+            for (int users = in.getInt(); users > 0; users--) {
+                User user = new User(WriteAheadLog.readString(in), WriteAheadLog.readString(in), WriteAheadLog.readString(in));
+                userIdVsUserMap.put(user.id, user);
+            }
+            List<int[]> subFlightSerials = new ArrayList<>();
+            for (int count = in.getInt(); count > 0; count--) {
+                Flight flight = new Flight(WriteAheadLog.readString(in), WriteAheadLog.readString(in),
+                        WriteAheadLog.readString(in), WriteAheadLog.readString(in), in.getInt());
+                flight.serial = flights.size();
+                flights.add(flight);
+                for (int bookings = in.getInt(); bookings > 0; bookings--) {
+                    String userId = WriteAheadLog.readString(in);
+                    flight.bookings.add(new Booking(userId, flight.flightId, WriteAheadLog.readString(in)));
+                }
+                int[] serials = new int[in.getInt()];
+                for (int i = 0; i < serials.length; i++) {
+                    serials[i] = in.getInt();
+                }
+                subFlightSerials.add(serials);
+            }
+            // connections can point at flights created after them
+            for (int serial = 0; serial < flights.size(); serial++) {
+                for (int subSerial : subFlightSerials.get(serial)) {
+                    flights.get(serial).addConnectingFlight(flights.get(subSerial));
+                }
+            }
+            for (int directions = in.getInt(); directions > 0; directions--) {
+                List<Flight> directionFlights = new ArrayList<>();
+                flightDirectionVsFlightMap.put(WriteAheadLog.readString(in), directionFlights);
+                for (int count = in.getInt(); count > 0; count--) {
+                    directionFlights.add(flights.get(in.getInt()));
+                }
+            }
+            for (int count = in.getInt(); count > 0; count--) {
+                String flightId = WriteAheadLog.readString(in);
+                flightIdVsFlightMap.put(flightId, flights.get(in.getInt()));
+            }
+        }
+
+        private void replay(byte type, ByteBuffer in)
+        {
+            switch (type) {
+                case USER_ADDED: {
+                    User user = new User(WriteAheadLog.readString(in), WriteAheadLog.readString(in), WriteAheadLog.readString(in));
+                    userIdVsUserMap.put(user.id, user);
+                    break;
+                }
+                case FLIGHT_ADDED:
+                    applyAddFlight(WriteAheadLog.readString(in), WriteAheadLog.readString(in),
+                            WriteAheadLog.readString(in), WriteAheadLog.readString(in), in.getInt());
+                    break;
+                case CONNECTION_ADDED:
+                    applyConnectingFlight(WriteAheadLog.readString(in), WriteAheadLog.readString(in));
+                    break;
+                case SEAT_BOOKED: {
+                    Flight flight = flights.get(in.getInt());
+                    String userId = WriteAheadLog.readString(in);
+                    int seatNumber = in.getInt();
+                    if (flight.bookings.size() == seatNumber) { // lower seats may already be in the snapshot
+                        flight.bookings.add(new Booking(userId, flight.flightId, "seat" + seatNumber));
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown flight record type " + type);
+            }
+        }
     }
     public static class Flight
     {
@@ -106,6 +322,8 @@ public class FlightBookingApp {
         private int maxCapacity;
         private List<Booking> bookings;
         private List<Flight> subFlights;
+        private int serial = -1; // position in the owning service's flights
+        private WriteAheadLog log; // the owning service's log, if it has one
         ReentrantLock lock =new ReentrantLock();
         public Flight(String flightId, String airLineName, String origin,  String destination, int maxCapacity)
         {
@@ -141,22 +359,51 @@ public class FlightBookingApp {
             return bookings.size() < maxCapacity;
         }
 
+        // with a log, returns once the seat is on disk; other bookings need not wait for that
         public boolean book(User user)
         {
+            CompletableFuture<Long> logged = null;
+            Booking booking;
             lock.lock();
             try {
                 if (bookings.size() < maxCapacity) {
-                    String seat = "seat" + bookings.size();
-                    Booking booking = new Booking(user.getId(), flightId, seat);
+                    int seatNumber = bookings.size();
+                    String seat = "seat" + seatNumber;
+                    booking = new Booking(user.getId(), flightId, seat);
+                    if (log != null) {
+                        logged = log.append(FlightBookingService.SEAT_BOOKED, out -> {
+                            out.writeInt(serial);
+                            WriteAheadLog.writeString(out, user.getId());
+                            out.writeInt(seatNumber);
+                        });
+                    }
                     this.bookings.add(booking);
-                    return true;
                 }
-                System.out.println("No seats are available in the flight");
-                return false;
+                else {
+                    System.out.println("No seats are available in the flight");
+                    return false;
+                }
             }
             finally {
                 lock.unlock();
             }
+            if (logged != null) {
+                try {
+                    logged.join();
+                }
+                catch (RuntimeException ex) {
+                    // the log is failed, so every seat taken after this one is being given back as well
+                    lock.lock();
+                    try {
+                        bookings.remove(booking);
+                    }
+                    finally {
+                        lock.unlock();
+                    }
+                    throw ex;
+                }
+            }
+            return true;
         }
     }
 
@@ -191,7 +438,96 @@ public class FlightBookingApp {
         }
     }
 
-    public static void main(String[] args) {
+    // every flight object's seats and the search results, to compare a service before and after a restart
+    private static List<String> describe(FlightBookingService service)
+    {
+        List<String> lines = new ArrayList<>();
+        for (Flight flight : service.flights) {
+            lines.add(flight.serial + " " + flight.flightId + " " + flight.origin + "->" + flight.destination + " direct=" + flight.isDirectFlight()
+                    + " seats=" + flight.bookings.stream().map(booking -> booking.userId + ":" + booking.seat).collect(Collectors.toList()));
+        }
+        lines.add("NY->Paris " + service.searchFlight("New York", "Paris", false).stream().map(Flight::getFlightId).collect(Collectors.toList()));
+        return lines;
+    }
+
+    /*
+    Threads book seats concurrently on a durable service, with a snapshot half way, and the
+    service is restarted from disk: it must come back with every seat it confirmed.
+    */
+    static void durabilityDemo() throws IOException, InterruptedException
+    {
+        Path directory = Files.createTempDirectory("flight-wal");
+        List<String> before;
+        try (FlightBookingService service = new FlightBookingService(directory, 0)) {
+            service.addFlight("F1", "Indigo", "New York", "London", 200);
+            service.addFlight("F2", "Air India", "London", "Paris", 180);
+            service.addFlight("F3", "Lufthansa", "New York", "Paris", 220);
+            service.addConnectingFlight("F1", "F2");
+            for (int u = 0; u < 100; u++) {
+                service.addUser("U" + u, "User " + u, "user" + u + "@example.com");
+            }
+            AtomicInteger confirmed = new AtomicInteger();
+            for (int half = 0; half < 2; half++) {
+                List<Thread> threads = new ArrayList<>();
+                for (int t = 0; t < 8; t++) {
+                    int seed = t;
+                    threads.add(new Thread(() -> {
+                        for (int i = 0; i < 30; i++) {
+                            String flightId = "F" + (1 + (seed + i) % 3);
+                            if (service.bookFlight(service.userIdVsUserMap.get("U" + (seed * 30 + i) % 100), flightId)) {
+                                confirmed.incrementAndGet();
+                            }
+                        }
+                    }));
+                }
+                threads.forEach(Thread::start);
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+                if (half == 0) {
+                    service.checkpoint();
+                }
+            }
+            before = describe(service);
+            System.out.println("Confirmed " + confirmed.get() + " seats, " + String.format("%.1f", (double) service.log.getRecordCount() / service.log.getSyncCount()) + " records per fsync");
+        }
+        try (FlightBookingService service = new FlightBookingService(directory, 0)) {
+            if (!describe(service).equals(before)) {
+                throw new IllegalStateException("Restarted service differs: " + describe(service) + " vs " + before);
+            }
+            System.out.println("Restarted with all seats: " + describe(service).get(describe(service).size() - 1));
+        }
+
+        // a closed log refuses every change, which must then not be applied either
+        FlightBookingService closed = new FlightBookingService(directory, 0);
+        closed.close();
+        before = describe(closed);
+        int refused = 0;
+        try {
+            closed.addUser("U100", "User 100", "user100@example.com");
+        }
+        catch (IllegalStateException ex) {
+            refused++;
+        }
+        try {
+            closed.bookFlight(closed.userIdVsUserMap.get("U0"), "F3");
+        }
+        catch (IllegalStateException ex) {
+            refused++;
+        }
+        if (refused != 2 || closed.userIdVsUserMap.containsKey("U100") || !describe(closed).equals(before)) {
+            throw new IllegalStateException("A change the log refused was applied");
+        }
+        System.out.println("A closed log refused a user and a seat, and neither was added");
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
         FlightBookingService service = new FlightBookingService();
 
 // Adding direct flights
@@ -209,5 +545,7 @@ public class FlightBookingApp {
         List<Flight> allFlights = service.searchFlight("New York", "Paris", false);
         System.out.println("Total flights found (including connections): " + allFlights.size());
 
+        durabilityDemo();
+
     }
 }
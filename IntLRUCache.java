@@ -0,0 +1,240 @@
+package cache.lru;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class IntLRUCache {
+    /*
+    Same get/put contract as LRUCache, but without boxed keys or per-entry Node objects.
+    Entries live in a preallocated slot table (parallel key/value/prev/next arrays) and the
+    recency list is threaded through int indices. Keys are found through an open-addressing
+    int[] index (linear probing, backward-shift deletion, load factor <= 0.5).
+    Once the cache is full, get and put allocate nothing: eviction just reuses the tail's slot.
+
+    Per entry: key 4 + value ref 4 + prev 4 + next 4 + two index cells 8 = ~24 bytes,
+    against ~90 bytes for LRUCache (Node 32 + boxed Integer 16 + map node 32 + table cell).
+    */
+
+    private static final int EMPTY = 0; // index cells store slot + 1
+
+    private final int maxCapacity;
+    private final int[] keys;
+    private final String[] values;
+    private final int[] prev;
+    private final int[] next;
+    private final int head; // sentinel slot: next[head] is most recent, prev[head] least recent
+    private final int[] index;
+    private final int indexMask;
+    private final int indexShift;
+    private int size;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public IntLRUCache(int maxCapacity)
+    {
+        if (maxCapacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        this.maxCapacity = maxCapacity;
+        this.keys = new int[maxCapacity + 1];
+        this.values = new String[maxCapacity + 1];
+        this.prev = new int[maxCapacity + 1];
+        this.next = new int[maxCapacity + 1];
+        this.head = maxCapacity;
+        prev[head] = head;
+        next[head] = head;
+
+        int indexSize = Integer.highestOneBit(Math.max(2, maxCapacity) * 2 - 1) << 1;
+        this.index = new int[indexSize];
+        this.indexMask = indexSize - 1;
+        this.indexShift = 32 - Integer.numberOfTrailingZeros(indexSize);
+    }
+
+    public String get(int id)
+    {
+        lock.lock();
+        try {
+            int slot = findSlot(id);
+            if (slot < 0) {
+                return null;
+            }
+            moveToFront(slot);
+            return values[slot];
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(int key, String value)
+    {
+        lock.lock();
+        try {
+            int slot = findSlot(key);
+            if (slot >= 0) {
+                values[slot] = value;
+                moveToFront(slot);
+                return;
+            }
+
+            if (size == maxCapacity) {
+                slot = prev[head];
+                unlink(slot);
+                removeFromIndex(keys[slot]);
+            }
+            else {
+                slot = size++;
+            }
+
+            keys[slot] = key;
+            values[slot] = value;
+            addToFront(slot);
+            addToIndex(key, slot);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public int size()
+    {
+        lock.lock();
+        try {
+            return size;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private int home(int key)
+    {
+        return (key * 0x9E3779B9) >>> indexShift;
+    }
+
+    private int findSlot(int key)
+    {
+        for (int i = home(key); ; i = (i + 1) & indexMask) {
+            int cell = index[i];
+            if (cell == EMPTY) {
+                return -1;
+            }
+            if (keys[cell - 1] == key) {
+                return cell - 1;
+            }
+        }
+    }
+
+    private void addToIndex(int key, int slot)
+    {
+        int i = home(key);
+        while (index[i] != EMPTY) {
+            i = (i + 1) & indexMask;
+        }
+        index[i] = slot + 1;
+    }
+
+    // backward-shift deletion keeps probe chains intact without tombstones
+    private void removeFromIndex(int key)
+    {
+        int i = home(key);
+        while (keys[index[i] - 1] != key) {
+            i = (i + 1) & indexMask;
+        }
+        for (int j = (i + 1) & indexMask; index[j] != EMPTY; j = (j + 1) & indexMask) {
+            int k = home(keys[index[j] - 1]);
+            // move j back into the hole at i unless its home lies cyclically in (i, j]
+            boolean homeBetween = i <= j ? (i < k && k <= j) : (i < k || k <= j);
+            if (!homeBetween) {
+                index[i] = index[j];
+                i = j;
+            }
+        }
+        index[i] = EMPTY;
+    }
+
+    private void moveToFront(int slot)
+    {
+        unlink(slot);
+        addToFront(slot);
+    }
+
+    private void addToFront(int slot)
+    {
+        int headNext = next[head];
+        next[head] = slot;
+        prev[slot] = head;
+        next[slot] = headNext;
+        prev[headNext] = slot;
+    }
+
+    private void unlink(int slot)
+    {
+        int p = prev[slot];
+        int n = next[slot];
+        next[p] = n;
+        prev[n] = p;
+    }
+
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long allocatedBytes()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) {
+        IntLRUCache cache = new IntLRUCache(10);
+        for(int i=0;i<12;i++)
+        {
+            cache.put(i, "data-"+i);
+        }
+        for(int i=0;i<=12;i++)
+        {
+            System.out.println(cache.get(i));
+        }
+
+        // heap footprint: same shared value strings in both caches, so only per-entry overhead differs
+        int entries = 1_000_000;
+        String[] payloads = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            payloads[i] = "data-" + i;
+        }
+
+        long before = usedHeap();
+        LRUCache nodeCache = new LRUCache(entries);
+        for (int i = 0; i < entries; i++) {
+            nodeCache.put(i, payloads[i]);
+        }
+        long nodeBytes = usedHeap() - before;
+        System.out.println("LRUCache    : " + nodeBytes / entries + " bytes/entry (" + nodeCache.size() + " entries)");
+        nodeCache = null;
+
+        before = usedHeap();
+        IntLRUCache intCache = new IntLRUCache(entries);
+        for (int i = 0; i < entries; i++) {
+            intCache.put(i, payloads[i]);
+        }
+        long intBytes = usedHeap() - before;
+        System.out.println("IntLRUCache : " + intBytes / entries + " bytes/entry (" + intCache.size() + " entries)");
+
+        // steady state: the cache is full, so puts evict and reuse slots
+        long allocBefore = allocatedBytes();
+        for (int i = 0; i < entries; i++) {
+            intCache.get(i);
+            intCache.put(entries + i, payloads[i]);
+        }
+        long allocated = allocatedBytes() - allocBefore;
+        System.out.println("IntLRUCache : " + allocated + " bytes allocated over " + (2 * entries) + " steady-state get/put calls");
+    }
+}
@@ -1,15 +1,64 @@
 package cache.lru;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.function.LongSupplier;
+import java.util.function.ObjIntConsumer;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class LRUCache {
 
+    static final long NEVER = Long.MAX_VALUE;
+
    public static class Node
     {
         int key;
-        String value;
+        volatile String value;
+        // off-heap mode: value is null and its UTF-8 bytes live in a slab chunk
+        long address;
+        int length;
+        byte queue; // which access list of the eviction policy holds this node
         Node prev, next;
+        // expiry: absolute ticker deadlines, NEVER when unset; linked into a timer wheel bucket when scheduled
+        volatile long expiresAt = NEVER;
+        long writeDeadline = NEVER;
+        Node timerPrev, timerNext;
         public Node(int key, String value)
         {
             this.key = key;
@@ -22,99 +71,2165 @@ public class LRUCache {
         }
     }
 
-    private int maxCapacity;
-    ConcurrentHashMap<Integer,Node> idToDataMap;
-    Node head, tail;
-    private final ReentrantLock lock;
-
-    public LRUCache(int maxCapacity)
+    /*
+    Off-heap value storage for one segment, memcached style: direct ByteBuffer slabs of
+    SLAB_SIZE carved into power-of-two chunks (16 B .. 1 MB), with a free list per size class.
+    Values larger than a slab get a dedicated buffer. A node's address packs slab index
+    and offset; the size class is recomputed from the length, so chunks carry no header.
+    Not thread safe: always used under the owning segment's lock.
+    */
+    static class OffHeapValueStore
     {
-        this.maxCapacity = maxCapacity;
-        this.idToDataMap = new ConcurrentHashMap<>();
-        head = new Node(0, "");
-        tail = new Node(0, "");
-        head.next = tail;
-        tail.prev = head;
-        this.lock = new ReentrantLock();
+        static final int SLAB_SHIFT = 20;
+        static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+        static final int MIN_CHUNK_SHIFT = 4;
+        static final int SIZE_CLASSES = SLAB_SHIFT - MIN_CHUNK_SHIFT + 1;
+
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+        private final ArrayDeque<Integer> freeSlabIndexes = new ArrayDeque<>();
+        private final long[][] freeChunks = new long[SIZE_CLASSES][];
+        private final int[] freeChunkCount = new int[SIZE_CLASSES];
+        private final int[] bumpSlab = new int[SIZE_CLASSES];
+        private final int[] bumpOffset = new int[SIZE_CLASSES];
+        private long reservedBytes;
+
+        OffHeapValueStore()
+        {
+            for (int i = 0; i < SIZE_CLASSES; i++) {
+                freeChunks[i] = new long[16];
+                bumpSlab[i] = -1;
+            }
+        }
+
+        private static int sizeClass(int length)
+        {
+            if (length <= (1 << MIN_CHUNK_SHIFT)) {
+                return 0;
+            }
+            int shift = 32 - Integer.numberOfLeadingZeros(length - 1);
+            return shift <= SLAB_SHIFT ? shift - MIN_CHUNK_SHIFT : -1;
+        }
+
+        void write(Node node, String value)
+        {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            node.length = bytes.length;
+            node.address = allocate(bytes.length);
+            if (bytes.length > 0) {
+                slab(node.address).put(offset(node.address), bytes);
+            }
+        }
+
+        byte[] readBytes(Node node)
+        {
+            byte[] bytes = new byte[node.length];
+            if (node.length > 0) {
+                slab(node.address).get(offset(node.address), bytes);
+            }
+            return bytes;
+        }
+
+        String read(Node node)
+        {
+            return new String(readBytes(node), StandardCharsets.UTF_8);
+        }
+
+        void free(Node node)
+        {
+            if (node.length == 0) {
+                return;
+            }
+            int sizeClass = sizeClass(node.length);
+            if (sizeClass < 0) {
+                int slabIndex = (int) (node.address >>> SLAB_SHIFT);
+                reservedBytes -= slabs.get(slabIndex).capacity();
+                slabs.set(slabIndex, null);
+                freeSlabIndexes.push(slabIndex);
+                return;
+            }
+            if (freeChunkCount[sizeClass] == freeChunks[sizeClass].length) {
+                freeChunks[sizeClass] = Arrays.copyOf(freeChunks[sizeClass], freeChunks[sizeClass].length * 2);
+            }
+            freeChunks[sizeClass][freeChunkCount[sizeClass]++] = node.address;
+        }
+
+        private long allocate(int length)
+        {
+            if (length == 0) {
+                return -1;
+            }
+            int sizeClass = sizeClass(length);
+            if (sizeClass < 0) {
+                return (long) newSlab(length) << SLAB_SHIFT;
+            }
+            if (freeChunkCount[sizeClass] > 0) {
+                return freeChunks[sizeClass][--freeChunkCount[sizeClass]];
+            }
+            int chunkSize = 1 << (sizeClass + MIN_CHUNK_SHIFT);
+            if (bumpSlab[sizeClass] < 0 || bumpOffset[sizeClass] + chunkSize > SLAB_SIZE) {
+                bumpSlab[sizeClass] = newSlab(SLAB_SIZE);
+                bumpOffset[sizeClass] = 0;
+            }
+            long address = ((long) bumpSlab[sizeClass] << SLAB_SHIFT) | bumpOffset[sizeClass];
+            bumpOffset[sizeClass] += chunkSize;
+            return address;
+        }
+
+        private int newSlab(int size)
+        {
+            ByteBuffer slab = ByteBuffer.allocateDirect(size);
+            reservedBytes += size;
+            if (!freeSlabIndexes.isEmpty()) {
+                int slabIndex = freeSlabIndexes.pop();
+                slabs.set(slabIndex, slab);
+                return slabIndex;
+            }
+            slabs.add(slab);
+            return slabs.size() - 1;
+        }
+
+        private ByteBuffer slab(long address)
+        {
+            return slabs.get((int) (address >>> SLAB_SHIFT));
+        }
+
+        private static int offset(long address)
+        {
+            return (int) (address & (SLAB_SIZE - 1));
+        }
+
+        long reservedBytes()
+        {
+            return reservedBytes;
+        }
     }
 
-    public String get(int id)
+    /*
+    Cold tier for one segment: entries evicted from the hot tier are appended to a
+    memory-mapped region used as a ring log of [key][length][write deadline][utf-8 bytes] records.
+    When the writer laps the ring, the oldest records are overwritten (FIFO eviction); a live
+    entry dropped that way, or one too large for the region, is handed to the discard callback
+    with its bytes, read before they are overwritten.
+    A hit is removed from the tier and promoted back into the hot tier.
+    Not thread safe: always used under the owning segment's lock.
+    */
+    static class MappedSpillTier
     {
-       lock.lock();
-        if (!idToDataMap.containsKey(id)) {
-            System.out.println(id + " not available in cache");
-            return null;
+        private static final int HEADER_BYTES = 16;
+
+        private final MappedByteBuffer region;
+        private final int capacity;
+        private final Map<Integer,Integer> keyToPosition = new HashMap<>();
+        private final ArrayDeque<Long> records = new ArrayDeque<>(); // (position << 32) | size, oldest first
+        private int writePosition;
+
+        MappedSpillTier(FileChannel channel, long fileOffset, int capacity) throws IOException
+        {
+            this.region = channel.map(FileChannel.MapMode.READ_WRITE, fileOffset, capacity);
+            this.capacity = capacity;
         }
 
-        Node data = idToDataMap.get(id);
-        try {
+        void write(int key, byte[] bytes, long writeDeadline, ObjIntConsumer<byte[]> discarded)
+        {
+            int size = HEADER_BYTES + bytes.length;
+            if (size > capacity) {
+                keyToPosition.remove(key);
+                discarded.accept(bytes, key);
+                return;
+            }
+            int start = writePosition;
+            boolean wrapped = start + size > capacity;
+            if (wrapped) {
+                start = 0;
+            }
+            while (!records.isEmpty()) {
+                long record = records.peekFirst();
+                int position = (int) (record >>> 32);
+                int recordSize = (int) record;
+                boolean inSkippedTail = wrapped && position >= writePosition;
+                boolean overlaps = position < start + size && start < position + recordSize;
+                if (!inSkippedTail && !overlaps) {
+                    break;
+                }
+                records.pollFirst();
+                int recordKey = region.getInt(position);
+                if (keyToPosition.getOrDefault(recordKey, -1) == position) {
+                    keyToPosition.remove(recordKey);
+                    byte[] lost = new byte[region.getInt(position + 4)];
+                    region.get(position + HEADER_BYTES, lost);
+                    discarded.accept(lost, recordKey);
+                }
+            }
+            region.putInt(start, key);
+            region.putInt(start + 4, bytes.length);
+            region.putLong(start + 8, writeDeadline);
+            region.put(start + HEADER_BYTES, bytes);
+            records.addLast(((long) start << 32) | size);
+            keyToPosition.put(key, start);
+            writePosition = start + size;
+        }
 
-            // consider this as recently used
-            // move this data to front
-            deleteNode(data);
-            addToFront(data);
-            return data.value;
+        long writeDeadline(int key)
+        {
+            Integer position = keyToPosition.get(key);
+            return position == null ? NEVER : region.getLong(position + 8);
+        }
+
+        // returns the spilled bytes and drops the entry from this tier, or null
+        byte[] remove(int key)
+        {
+            Integer position = keyToPosition.remove(key);
+            if (position == null) {
+                return null;
+            }
+            byte[] bytes = new byte[region.getInt(position + 4)];
+            region.get(position + HEADER_BYTES, bytes);
+            return bytes;
         }
-        finally
+
+        int size()
         {
-            lock.unlock();
+            return keyToPosition.size();
         }
     }
 
-    private void addToFront(Node node)
+    public enum RemovalCause {
+        EXPIRED,   // its time-to-live or expire-after-access deadline passed
+        REPLACED,  // put overwrote the value
+        SIZE       // evicted to make room
+    }
+
+    // called after the segment lock is released; must not assume it runs on the thread that caused the removal
+    public interface RemovalListener
     {
-        Node headNext = head.next;
-        head.next = node;
-        node.prev = head;
-        node.next = headNext;
-        headNext.prev = node;
+        void onRemoval(int key, String value, RemovalCause cause);
     }
 
-    private void deleteNode(Node node)
+    static class Removal
     {
-        Node prev = node.prev;
-        Node next = node.next;
-        prev.next = next;
-        next.prev = prev;
+        final int key;
+        final String value;
+        final RemovalCause cause;
+
+        Removal(int key, String value, RemovalCause cause)
+        {
+            this.key = key;
+            this.value = value;
+            this.cause = cause;
+        }
     }
 
-    public void put(int key, String value)
+    /*
+    Hierarchical timing wheel (as in Kafka / Caffeine). Level 0 has 64 buckets of ~1.07s,
+    level 1 64 of ~1.14m, level 2 32 of ~1.22h, level 3 4 of ~0.8d, level 4 one overflow bucket.
+    Scheduling and descheduling are O(1) list splices. advance() only visits the buckets whose
+    time range has passed; entries found there either expire or cascade to a finer bucket,
+    so the cost of a sweep follows the number of expiring entries, not the cache size.
+    Not thread safe: always used under the owning segment's lock.
+    */
+    static class TimerWheel
     {
-        lock.lock();
-        try {
-            if (idToDataMap.containsKey(key)) {
-                Node node = idToDataMap.get(key);
-                node.value = value;
-                deleteNode(node);
-                addToFront(node);
+        static final int[] BUCKETS = {64, 64, 32, 4, 1};
+        static final int[] SHIFTS = {30, 36, 42, 46, 48};
+
+        private final Node[][] wheel;
+        private long nanos;
+
+        TimerWheel(long now)
+        {
+            this.nanos = now;
+            this.wheel = new Node[BUCKETS.length][];
+            for (int i = 0; i < BUCKETS.length; i++) {
+                wheel[i] = new Node[BUCKETS[i]];
+                for (int j = 0; j < BUCKETS[i]; j++) {
+                    Node sentinel = new Node(0, "");
+                    sentinel.timerPrev = sentinel;
+                    sentinel.timerNext = sentinel;
+                    wheel[i][j] = sentinel;
+                }
+            }
+        }
+
+        void reschedule(Node node, long now)
+        {
+            deschedule(node);
+            if (node.expiresAt == NEVER) {
                 return;
             }
+            // an already expired entry goes into the current bucket and is picked up on the next tick
+            long time = node.expiresAt - now > 0 ? node.expiresAt : now;
+            Node sentinel = bucketFor(time, now);
+            Node last = sentinel.timerPrev;
+            last.timerNext = node;
+            node.timerPrev = last;
+            node.timerNext = sentinel;
+            sentinel.timerPrev = node;
+        }
 
-            if (idToDataMap.size() == maxCapacity) {
-                Node node = tail.prev;
-                deleteNode(node);
-                idToDataMap.remove(node.key);
+        void deschedule(Node node)
+        {
+            if (node.timerNext == null) {
+                return;
             }
+            node.timerPrev.timerNext = node.timerNext;
+            node.timerNext.timerPrev = node.timerPrev;
+            node.timerPrev = null;
+            node.timerNext = null;
+        }
 
-            Node newNode = new Node(key, value);
-            idToDataMap.put(key, newNode);
-            addToFront(newNode);
+        private Node bucketFor(long time, long now)
+        {
+            long delay = time - now;
+            for (int i = 0; i < BUCKETS.length - 1; i++) {
+                if (delay < 1L << SHIFTS[i + 1]) {
+                    int ticks = (int) (time >>> SHIFTS[i]);
+                    return wheel[i][ticks & (BUCKETS[i] - 1)];
+                }
+            }
+            return wheel[BUCKETS.length - 1][0];
         }
-        finally {
-            lock.unlock();
+
+        void advance(long now, Consumer<Node> onExpired)
+        {
+            long previous = nanos;
+            nanos = now;
+            for (int i = 0; i < SHIFTS.length; i++) {
+                long previousTicks = previous >>> SHIFTS[i];
+                long delta = (now >>> SHIFTS[i]) - previousTicks;
+                if (delta <= 0) {
+                    break;
+                }
+                expireBuckets(i, previousTicks, delta, now, onExpired);
+            }
+        }
+
+        private void expireBuckets(int level, long previousTicks, long delta, long now, Consumer<Node> onExpired)
+        {
+            Node[] buckets = wheel[level];
+            int mask = buckets.length - 1;
+            int steps = (int) Math.min(1 + delta, buckets.length);
+            int start = (int) (previousTicks & mask);
+            for (int i = start; i < start + steps; i++) {
+                Node sentinel = buckets[i & mask];
+                Node node = sentinel.timerNext;
+                sentinel.timerPrev = sentinel;
+                sentinel.timerNext = sentinel;
+                while (node != sentinel) {
+                    Node next = node.timerNext;
+                    node.timerPrev = null;
+                    node.timerNext = null;
+                    if (node.expiresAt - now <= 0) {
+                        onExpired.accept(node);
+                    }
+                    else {
+                        reschedule(node, now);
+                    }
+                    node = next;
+                }
+            }
         }
     }
 
-    public static void main(String[] args) {
-        LRUCache cache = new LRUCache(10);
-        for(int i=0;i<12;i++)
+    /*
+    Striped counters for one cache, shared by all segments. LongAdder keeps recording
+    contention-free on the hot path; load latency goes into a log2 histogram. When stats
+    are disabled the cache holds no recorder at all, so the only cost is a null check.
+    */
+    static class StatsRecorder
+    {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder loadSuccesses = new LongAdder();
+        private final LongAdder loadFailures = new LongAdder();
+        private final LongAdder totalLoadNanos = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder expirations = new LongAdder();
+        private final LongAdder lockContentions = new LongAdder();
+        private final LongAdder totalLockWaitNanos = new LongAdder();
+        private final LatencyHistogram loadLatency = new LatencyHistogram();
+
+        void recordLookup(boolean hit)
         {
-            cache.put(i, "data-"+i);
+            (hit ? hits : misses).increment();
         }
-        for(int i=0;i<=12;i++)
+
+        void recordLoad(long nanos, boolean success)
         {
-            System.out.println(cache.get(i));
+            (success ? loadSuccesses : loadFailures).increment();
+            totalLoadNanos.add(nanos);
+            loadLatency.record(nanos);
+        }
+
+        void recordRemoval(RemovalCause cause)
+        {
+            if (cause == RemovalCause.SIZE) {
+                evictions.increment();
+            }
+            else if (cause == RemovalCause.EXPIRED) {
+                expirations.increment();
+            }
+        }
+
+        void recordLockWait(long nanos)
+        {
+            lockContentions.increment();
+            totalLockWaitNanos.add(nanos);
+        }
+
+        CacheStats snapshot()
+        {
+            return new CacheStats(hits.sum(), misses.sum(), loadSuccesses.sum(), loadFailures.sum(),
+                    totalLoadNanos.sum(), evictions.sum(), expirations.sum(), lockContentions.sum(),
+                    totalLockWaitNanos.sum(), loadLatency.snapshot());
+        }
+    }
+
+    // bucket i counts latencies in [2^i, 2^(i+1)) nanos
+    static class LatencyHistogram
+    {
+        private final LongAdder[] buckets = new LongAdder[64];
+
+        LatencyHistogram()
+        {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos)
+        {
+            buckets[63 - Long.numberOfLeadingZeros(Math.max(1, nanos))].increment();
+        }
+
+        long[] snapshot()
+        {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+    }
+
+    // point-in-time copy of a cache's statistics
+    public static class CacheStats
+    {
+        private final long hitCount;
+        private final long missCount;
+        private final long loadSuccessCount;
+        private final long loadFailureCount;
+        private final long totalLoadNanos;
+        private final long evictionCount;
+        private final long expirationCount;
+        private final long lockContentionCount;
+        private final long totalLockWaitNanos;
+        private final long[] loadLatencyBuckets;
+
+        CacheStats(long hitCount, long missCount, long loadSuccessCount, long loadFailureCount, long totalLoadNanos,
+                   long evictionCount, long expirationCount, long lockContentionCount, long totalLockWaitNanos,
+                   long[] loadLatencyBuckets)
+        {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.loadSuccessCount = loadSuccessCount;
+            this.loadFailureCount = loadFailureCount;
+            this.totalLoadNanos = totalLoadNanos;
+            this.evictionCount = evictionCount;
+            this.expirationCount = expirationCount;
+            this.lockContentionCount = lockContentionCount;
+            this.totalLockWaitNanos = totalLockWaitNanos;
+            this.loadLatencyBuckets = loadLatencyBuckets;
+        }
+
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        public long getMissCount() {
+            return missCount;
+        }
+
+        public double getHitRate() {
+            long requests = hitCount + missCount;
+            return requests == 0 ? 1.0 : (double) hitCount / requests;
+        }
+
+        public long getLoadSuccessCount() {
+            return loadSuccessCount;
+        }
+
+        public long getLoadFailureCount() {
+            return loadFailureCount;
+        }
+
+        public long getAverageLoadNanos() {
+            long loads = loadSuccessCount + loadFailureCount;
+            return loads == 0 ? 0 : totalLoadNanos / loads;
+        }
+
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        public long getExpirationCount() {
+            return expirationCount;
+        }
+
+        public long getLockContentionCount() {
+            return lockContentionCount;
+        }
+
+        public long getTotalLockWaitNanos() {
+            return totalLockWaitNanos;
+        }
+
+        // upper bound of the histogram bucket holding the given percentile (0-100) of load latencies
+        public long loadLatencyPercentileNanos(double percentile)
+        {
+            long total = 0;
+            for (long count : loadLatencyBuckets) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < loadLatencyBuckets.length - 1; i++) {
+                seen += loadLatencyBuckets[i];
+                if (seen >= rank) {
+                    return (1L << (i + 1)) - 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + hitCount + " misses=" + missCount + " hitRate=" + String.format("%.3f", getHitRate())
+                    + " loads=" + loadSuccessCount + "/" + loadFailureCount + " avgLoad=" + getAverageLoadNanos() + "ns"
+                    + " p99Load<=" + loadLatencyPercentileNanos(99) + "ns evictions=" + evictionCount
+                    + " expirations=" + expirationCount + " lockContentions=" + lockContentionCount
+                    + " lockWait=" + totalLockWaitNanos + "ns";
+        }
+    }
+
+    // JMX view of a cache's statistics, registered with LRUCache.registerMBean
+    public interface CacheStatsMXBean
+    {
+        long getHitCount();
+
+        long getMissCount();
+
+        double getHitRate();
+
+        long getLoadSuccessCount();
+
+        long getLoadFailureCount();
+
+        long getAverageLoadNanos();
+
+        long getLoadLatencyP99Nanos();
+
+        long getEvictionCount();
+
+        long getExpirationCount();
+
+        long getLockContentionCount();
+
+        long getTotalLockWaitNanos();
+
+        int getSize();
+    }
+
+    static class CacheStatsMBean implements CacheStatsMXBean
+    {
+        private final LRUCache cache;
+
+        CacheStatsMBean(LRUCache cache)
+        {
+            this.cache = cache;
+        }
+
+        @Override
+        public long getHitCount() {
+            return cache.stats().getHitCount();
+        }
+
+        @Override
+        public long getMissCount() {
+            return cache.stats().getMissCount();
+        }
+
+        @Override
+        public double getHitRate() {
+            return cache.stats().getHitRate();
+        }
+
+        @Override
+        public long getLoadSuccessCount() {
+            return cache.stats().getLoadSuccessCount();
+        }
+
+        @Override
+        public long getLoadFailureCount() {
+            return cache.stats().getLoadFailureCount();
+        }
+
+        @Override
+        public long getAverageLoadNanos() {
+            return cache.stats().getAverageLoadNanos();
+        }
+
+        @Override
+        public long getLoadLatencyP99Nanos() {
+            return cache.stats().loadLatencyPercentileNanos(99);
+        }
+
+        @Override
+        public long getEvictionCount() {
+            return cache.stats().getEvictionCount();
+        }
+
+        @Override
+        public long getExpirationCount() {
+            return cache.stats().getExpirationCount();
+        }
+
+        @Override
+        public long getLockContentionCount() {
+            return cache.stats().getLockContentionCount();
         }
 
+        @Override
+        public long getTotalLockWaitNanos() {
+            return cache.stats().getTotalLockWaitNanos();
+        }
+
+        @Override
+        public int getSize() {
+            return cache.size();
+        }
+    }
+
+    // how a full segment picks what to evict
+    public enum Eviction {
+        LRU,
+        W_TINY_LFU
+    }
+
+    // doubly linked recency list with sentinels: most recent after head, least recent before tail
+    static class AccessList
+    {
+        final Node head, tail;
+        int size;
+
+        AccessList()
+        {
+            head = new Node(0, "");
+            tail = new Node(0, "");
+            head.next = tail;
+            tail.prev = head;
+        }
+
+        void addToFront(Node node)
+        {
+            Node headNext = head.next;
+            head.next = node;
+            node.prev = head;
+            node.next = headNext;
+            headNext.prev = node;
+            size++;
+        }
+
+        void deleteNode(Node node)
+        {
+            Node prev = node.prev;
+            Node next = node.next;
+            prev.next = next;
+            next.prev = prev;
+            size--;
+        }
+
+        void moveToFront(Node node)
+        {
+            deleteNode(node);
+            addToFront(node);
+        }
+
+        Node last()
+        {
+            return tail.prev == head ? null : tail.prev;
+        }
+
+        void forEach(Consumer<Node> action)
+        {
+            for (Node node = head.next; node != tail; node = node.next) {
+                action.accept(node);
+            }
+        }
+    }
+
+    /*
+    Orders the entries of one segment. The segment owns the map and calls these under its lock:
+    onInsert for a new entry, onAccess for a hit or overwrite, victim() when full, then remove.
+    */
+    interface EvictionPolicy
+    {
+        void onInsert(Node node);
+
+        void onAccess(Node node);
+
+        // the entry to evict from a full segment; still linked until remove is called
+        Node victim();
+
+        void remove(Node node);
+
+        void forEach(Consumer<Node> action);
+    }
+
+    static class LruPolicy implements EvictionPolicy
+    {
+        private final AccessList accessList = new AccessList();
+
+        @Override
+        public void onInsert(Node node) {
+            accessList.addToFront(node);
+        }
+
+        @Override
+        public void onAccess(Node node) {
+            // consider this as recently used
+            // move this data to front
+            accessList.moveToFront(node);
+        }
+
+        @Override
+        public Node victim() {
+            return accessList.last();
+        }
+
+        @Override
+        public void remove(Node node) {
+            accessList.deleteNode(node);
+        }
+
+        @Override
+        public void forEach(Consumer<Node> action) {
+            accessList.forEach(action);
+        }
+    }
+
+    /*
+    W-TinyLFU: new entries land in a small LRU admission window (1% of capacity). An entry
+    leaving the window only enters the main space if the frequency sketch says it is more
+    popular than the main space's eviction victim, so a one-off scan cannot flush the
+    working set. The main space is a segmented LRU: probation for entries seen once there,
+    protected (80% of main) for entries hit again.
+    */
+    static class WTinyLfuPolicy implements EvictionPolicy
+    {
+        static final byte WINDOW = 0;
+        static final byte PROBATION = 1;
+        static final byte PROTECTED = 2;
+
+        private final AccessList window = new AccessList();
+        private final AccessList probation = new AccessList();
+        private final AccessList protectedList = new AccessList();
+        private final int maxWindow;
+        private final int maxProtected;
+        private final FrequencySketch sketch;
+
+        WTinyLfuPolicy(int maxCapacity)
+        {
+            this.maxWindow = Math.max(1, maxCapacity / 100);
+            this.maxProtected = (maxCapacity - maxWindow) * 80 / 100;
+            this.sketch = new FrequencySketch(maxCapacity);
+        }
+
+        @Override
+        public void onInsert(Node node) {
+            sketch.increment(node.key);
+            node.queue = WINDOW;
+            window.addToFront(node);
+            if (window.size > maxWindow) {
+                Node overflow = window.last();
+                window.deleteNode(overflow);
+                overflow.queue = PROBATION;
+                probation.addToFront(overflow);
+            }
+        }
+
+        @Override
+        public void onAccess(Node node) {
+            sketch.increment(node.key);
+            if (node.queue == WINDOW) {
+                window.moveToFront(node);
+            }
+            else if (node.queue == PROTECTED) {
+                protectedList.moveToFront(node);
+            }
+            else {
+                probation.deleteNode(node);
+                node.queue = PROTECTED;
+                protectedList.addToFront(node);
+                if (protectedList.size > maxProtected) {
+                    Node demoted = protectedList.last();
+                    protectedList.deleteNode(demoted);
+                    demoted.queue = PROBATION;
+                    probation.addToFront(demoted);
+                }
+            }
+        }
+
+        @Override
+        public Node victim() {
+            Node candidate = window.last();
+            Node victim = probation.size > 0 ? probation.last() : protectedList.last();
+            if (candidate == null || victim == null) {
+                return candidate != null ? candidate : victim;
+            }
+            if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                // admit the window's candidate into main space; the main victim goes instead
+                window.deleteNode(candidate);
+                candidate.queue = PROBATION;
+                probation.addToFront(candidate);
+                return victim;
+            }
+            return candidate;
+        }
+
+        @Override
+        public void remove(Node node) {
+            listOf(node).deleteNode(node);
+        }
+
+        @Override
+        public void forEach(Consumer<Node> action) {
+            window.forEach(action);
+            probation.forEach(action);
+            protectedList.forEach(action);
+        }
+
+        private AccessList listOf(Node node)
+        {
+            return node.queue == WINDOW ? window : node.queue == PROBATION ? probation : protectedList;
+        }
+    }
+
+    /*
+    Count-min sketch of 4-bit counters, 16 per long, 4 hashed counters per key.
+    Once the number of increments reaches 10x capacity every counter is halved,
+    so popularity ages out and the sketch stays small (about 8 bytes per entry).
+    */
+    static class FrequencySketch
+    {
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int maxCapacity)
+        {
+            int tableSize = Integer.highestOneBit(Math.max(16, maxCapacity) - 1) << 1;
+            this.table = new long[tableSize];
+            this.tableMask = tableSize - 1;
+            this.sampleSize = 10 * Math.max(1, maxCapacity);
+        }
+
+        int frequency(int key)
+        {
+            int frequency = 15;
+            for (int i = 0; i < 4; i++) {
+                long hash = hash(key, i);
+                int shift = counterShift(hash);
+                frequency = Math.min(frequency, (int) ((table[index(hash)] >>> shift) & 0xfL));
+            }
+            return frequency;
+        }
+
+        void increment(int key)
+        {
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                long hash = hash(key, i);
+                int index = index(hash);
+                int shift = counterShift(hash);
+                if (((table[index] >>> shift) & 0xfL) < 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        private static long hash(int key, int i)
+        {
+            long hash = (key + SEEDS[i]) * SEEDS[i];
+            return hash + (hash >>> 32);
+        }
+
+        private int index(long hash)
+        {
+            return (int) (hash >>> 8) & tableMask;
+        }
+
+        private static int counterShift(long hash)
+        {
+            return ((int) hash & 15) << 2;
+        }
+    }
+
+    /*
+    One independent cache segment with its own lock, capacity and eviction policy.
+    With a single LRU segment this is exactly the classic LRU cache; with many
+    segments, threads touching different keys never contend on the same lock.
+    */
+    static class Segment
+    {
+        // read buffer: a small lossy ring of recent hits, replayed onto the recency list in batches
+        static final int READ_BUFFER_SIZE = 16;
+        static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+        static final int DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+
+        private final int maxCapacity;
+        ConcurrentHashMap<Integer,Node> idToDataMap;
+        final EvictionPolicy policy;
+        private final ReentrantLock lock;
+        private final AtomicReferenceArray<Node> readBuffer;
+        private final AtomicLong readBufferWriteCount;
+        private volatile long readBufferReadCount; // only advanced under lock
+        private final OffHeapValueStore offHeapStore;
+        private final MappedSpillTier spillTier;
+        private final long expireAfterWriteNanos;
+        private final long expireAfterAccessNanos;
+        private final LongSupplier ticker;
+        private TimerWheel timerWheel; // created on first entry that can expire
+        private final RemovalListener removalListener;
+        private final ConcurrentLinkedQueue<Removal> pendingRemovals;
+        private final StatsRecorder stats;
+
+        Segment(int maxCapacity, Builder builder, StatsRecorder stats, OffHeapValueStore offHeapStore, MappedSpillTier spillTier)
+        {
+            this.stats = stats;
+            this.maxCapacity = maxCapacity;
+            this.policy = builder.eviction == Eviction.W_TINY_LFU ? new WTinyLfuPolicy(maxCapacity) : new LruPolicy();
+            this.offHeapStore = offHeapStore;
+            this.spillTier = spillTier;
+            this.readBuffer = builder.bufferedReads ? new AtomicReferenceArray<>(READ_BUFFER_SIZE) : null;
+            this.readBufferWriteCount = builder.bufferedReads ? new AtomicLong() : null;
+            this.expireAfterWriteNanos = builder.expireAfterWriteNanos;
+            this.expireAfterAccessNanos = builder.expireAfterAccessNanos;
+            this.ticker = builder.ticker;
+            this.removalListener = builder.removalListener;
+            this.pendingRemovals = removalListener != null ? new ConcurrentLinkedQueue<>() : null;
+            this.idToDataMap = new ConcurrentHashMap<>();
+            this.lock = new ReentrantLock();
+        }
+
+        String getIfPresent(int id)
+        {
+            if (readBuffer != null) {
+                return getBuffered(id);
+            }
+            acquireLock();
+            try {
+                long now = expireEntries();
+                Node data = idToDataMap.get(id);
+                if (data == null) {
+                    return promoteFromSpill(id, now);
+                }
+                if (isExpired(data, now)) {
+                    removeEntry(data, RemovalCause.EXPIRED);
+                    return null;
+                }
+
+                policy.onAccess(data);
+                refreshAccessExpiry(data, now);
+                return readValue(data);
+            }
+            finally
+            {
+                lock.unlock();
+                notifyRemovals();
+            }
+        }
+
+        /*
+        Hits never block: the map lookup is lock-free and the access is only recorded in the
+        read buffer. If the buffer is full the access is dropped, so recency is approximate
+        but the buffer (and the work done under the lock) stays bounded.
+        */
+        private String getBuffered(int id)
+        {
+            Node data = idToDataMap.get(id);
+            if (data == null) {
+                return null;
+            }
+            String value = data.value;
+            if (data.expiresAt != NEVER && data.expiresAt - ticker.getAsLong() <= 0) {
+                return null; // reclaimed by the next maintenance under the lock
+            }
+            recordRead(data);
+            return value;
+        }
+
+        private void recordRead(Node node)
+        {
+            long writeCount = readBufferWriteCount.get();
+            long pending = writeCount - readBufferReadCount;
+            if (pending < READ_BUFFER_SIZE && readBufferWriteCount.compareAndSet(writeCount, writeCount + 1)) {
+                readBuffer.lazySet((int) (writeCount & READ_BUFFER_MASK), node);
+                pending++;
+            }
+            if (pending >= DRAIN_THRESHOLD && lock.tryLock()) {
+                try {
+                    drainReadBuffer(expireEntries());
+                }
+                finally {
+                    lock.unlock();
+                    notifyRemovals();
+                }
+            }
+        }
+
+        // must hold lock
+        private void drainReadBuffer(long now)
+        {
+            if (readBuffer == null) {
+                return;
+            }
+            long readCount = readBufferReadCount;
+            long writeCount = readBufferWriteCount.get();
+            for (; readCount < writeCount; readCount++) {
+                int index = (int) (readCount & READ_BUFFER_MASK);
+                Node node = readBuffer.get(index);
+                if (node == null) {
+                    break; // slot claimed but not yet published; pick it up next drain
+                }
+                readBuffer.lazySet(index, null);
+                // the node may have been evicted after it was recorded
+                if (idToDataMap.get(node.key) == node) {
+                    policy.onAccess(node);
+                    refreshAccessExpiry(node, now);
+                }
+            }
+            readBufferReadCount = readCount;
+        }
+
+        int pendingReads()
+        {
+            return readBuffer == null ? 0 : (int) (readBufferWriteCount.get() - readBufferReadCount);
+        }
+
+        void put(int key, String value, long timeToLiveNanos)
+        {
+            acquireLock();
+            try {
+                long now = expireEntries();
+                drainReadBuffer(now);
+                putLocked(key, value, writeDeadline(timeToLiveNanos, now), now);
+            }
+            finally {
+                lock.unlock();
+                notifyRemovals();
+            }
+        }
+
+        /*
+        Installs a loaded value unless the key now holds a value other than expected, the one the
+        load started from (null = nothing was cached). A put that landed while the loader ran is
+        newer than what it loaded and is kept. Returns the value cached afterwards.
+        */
+        String putLoaded(int key, String expected, String value)
+        {
+            acquireLock();
+            try {
+                long now = expireEntries();
+                drainReadBuffer(now);
+                Node node = idToDataMap.get(key);
+                if (node != null && isExpired(node, now)) {
+                    removeEntry(node, RemovalCause.EXPIRED);
+                    node = null;
+                }
+                String current = node != null ? readValue(node) : promoteFromSpill(key, now);
+                if (current != null && !current.equals(expected)) {
+                    return current;
+                }
+                putLocked(key, value, writeDeadline(0, now), now);
+                return value;
+            }
+            finally {
+                lock.unlock();
+                notifyRemovals();
+            }
+        }
+
+        // must hold lock
+        private void putLocked(int key, String value, long writeDeadline, long now)
+        {
+            Node node = idToDataMap.get(key);
+            if (node != null) {
+                if (pendingRemovals != null) {
+                    pendingRemovals.add(new Removal(key, readValue(node), RemovalCause.REPLACED));
+                }
+                if (offHeapStore != null) {
+                    offHeapStore.free(node);
+                }
+                writeValue(node, value);
+                policy.onAccess(node);
+                node.writeDeadline = writeDeadline;
+                scheduleExpiry(node, now);
+                return;
+            }
+
+            if (spillTier != null) {
+                spillTier.remove(key); // the new value supersedes any spilled copy
+            }
+            if (idToDataMap.size() == maxCapacity) {
+                removeEntry(policy.victim(), RemovalCause.SIZE);
+            }
+
+            Node newNode = new Node(key, null);
+            writeValue(newNode, value);
+            idToDataMap.put(key, newNode);
+            policy.onInsert(newNode);
+            newNode.writeDeadline = writeDeadline;
+            scheduleExpiry(newNode, now);
+        }
+
+        /*
+        Unlinks an entry from every structure. A size eviction moves the entry to the spill
+        tier when there is one; it is still served from there, so it is counted and reported
+        only once the tier drops it. Every removal is queued for the listener and delivered
+        once the lock is released.
+        */
+        private void removeEntry(Node node, RemovalCause cause)
+        {
+            policy.remove(node);
+            if (timerWheel != null) {
+                timerWheel.deschedule(node);
+            }
+            idToDataMap.remove(node.key);
+            if (cause == RemovalCause.SIZE && spillTier != null) {
+                byte[] bytes = offHeapStore != null ? offHeapStore.readBytes(node) : node.value.getBytes(StandardCharsets.UTF_8);
+                spillTier.write(node.key, bytes, node.writeDeadline, this::discardSpilled);
+            }
+            else {
+                if (stats != null) {
+                    stats.recordRemoval(cause);
+                }
+                if (pendingRemovals != null) {
+                    pendingRemovals.add(new Removal(node.key, readValue(node), cause));
+                }
+            }
+            if (offHeapStore != null) {
+                offHeapStore.free(node);
+            }
+        }
+
+        // an entry the spill tier overwrote or could not hold has now left the cache
+        private void discardSpilled(byte[] bytes, int key)
+        {
+            if (stats != null) {
+                stats.recordRemoval(RemovalCause.SIZE);
+            }
+            if (pendingRemovals != null) {
+                pendingRemovals.add(new Removal(key, new String(bytes, StandardCharsets.UTF_8), RemovalCause.SIZE));
+            }
+        }
+
+        private String promoteFromSpill(int key, long now)
+        {
+            if (spillTier == null) {
+                return null;
+            }
+            long writeDeadline = spillTier.writeDeadline(key);
+            byte[] bytes = spillTier.remove(key);
+            if (bytes == null) {
+                return null;
+            }
+            String value = new String(bytes, StandardCharsets.UTF_8);
+            if (writeDeadline != NEVER && writeDeadline - now <= 0) {
+                if (pendingRemovals != null) {
+                    pendingRemovals.add(new Removal(key, value, RemovalCause.EXPIRED));
+                }
+                return null;
+            }
+            putLocked(key, value, writeDeadline, now);
+            return value;
+        }
+
+        // must hold lock; advances the timer wheel and returns the current time (0 when nothing can expire)
+        long expireEntries()
+        {
+            if (timerWheel == null) {
+                return 0;
+            }
+            long now = ticker.getAsLong();
+            timerWheel.advance(now, expired -> removeEntry(expired, RemovalCause.EXPIRED));
+            return now;
+        }
+
+        void cleanUp()
+        {
+            acquireLock();
+            try {
+                drainReadBuffer(expireEntries());
+            }
+            finally {
+                lock.unlock();
+                notifyRemovals();
+            }
+        }
+
+        private long writeDeadline(long timeToLiveNanos, long now)
+        {
+            long duration = timeToLiveNanos > 0 ? timeToLiveNanos : expireAfterWriteNanos;
+            if (duration <= 0) {
+                return NEVER;
+            }
+            return (timerWheel == null ? ticker.getAsLong() : now) + duration;
+        }
+
+        private void scheduleExpiry(Node node, long now)
+        {
+            long expiresAt = node.writeDeadline;
+            if (expireAfterAccessNanos > 0 || expiresAt != NEVER) {
+                if (timerWheel == null) {
+                    now = ticker.getAsLong();
+                    timerWheel = new TimerWheel(now);
+                }
+                if (expireAfterAccessNanos > 0 && (expiresAt == NEVER || now + expireAfterAccessNanos - expiresAt < 0)) {
+                    expiresAt = now + expireAfterAccessNanos;
+                }
+            }
+            node.expiresAt = expiresAt;
+            if (timerWheel != null) {
+                timerWheel.reschedule(node, now);
+            }
+        }
+
+        private void refreshAccessExpiry(Node node, long now)
+        {
+            if (expireAfterAccessNanos > 0) {
+                scheduleExpiry(node, now);
+            }
+        }
+
+        private static boolean isExpired(Node node, long now)
+        {
+            return node.expiresAt != NEVER && node.expiresAt - now <= 0;
+        }
+
+        private void notifyRemovals()
+        {
+            if (pendingRemovals == null) {
+                return;
+            }
+            Removal removal;
+            while ((removal = pendingRemovals.poll()) != null) {
+                try {
+                    removalListener.onRemoval(removal.key, removal.value, removal.cause);
+                }
+                catch (RuntimeException ex) {
+                    System.err.println("Removal listener failed: " + ex.getMessage());
+                }
+            }
+        }
+
+        private String readValue(Node node)
+        {
+            return offHeapStore != null ? offHeapStore.read(node) : node.value;
+        }
+
+        private void writeValue(Node node, String value)
+        {
+            if (offHeapStore == null) {
+                node.value = value;
+                return;
+            }
+            offHeapStore.write(node, value);
+        }
+
+        // with stats on, a failed tryLock counts as contention and the wait is timed
+        private void acquireLock()
+        {
+            if (stats == null) {
+                lock.lock();
+                return;
+            }
+            if (lock.tryLock()) {
+                return;
+            }
+            long start = System.nanoTime();
+            lock.lock();
+            stats.recordLockWait(System.nanoTime() - start);
+        }
+
+        // lock-free: the entry's current deadline, or NEVER
+        long expiresAt(int key)
+        {
+            Node node = idToDataMap.get(key);
+            return node == null ? NEVER : node.expiresAt;
+        }
+
+        int size()
+        {
+            return idToDataMap.size();
+        }
+    }
+
+    private final int maxCapacity;
+    private final Segment[] segments;
+    private final int segmentMask;
+    // one future per key being loaded, so concurrent misses share a single load
+    private final ConcurrentHashMap<Integer,CompletableFuture<String>> inFlightLoads = new ConcurrentHashMap<>();
+    private final Executor loadExecutor;
+    private final long refreshAheadNanos;
+    private final LongSupplier ticker;
+    private final StatsRecorder stats;
+
+    public LRUCache(int maxCapacity)
+    {
+        this(new Builder(maxCapacity));
+    }
+
+    /*
+    Segmented mode: keys are hashed into independent LRU segments, each with its own
+    lock and recency list. The segment count is rounded down to a power of two and
+    never exceeds maxCapacity. The total capacity is split across segments so the
+    cache never holds more than maxCapacity entries; eviction is LRU within a
+    segment, which approximates global LRU when keys hash evenly.
+    */
+    public LRUCache(int maxCapacity, int concurrencyLevel)
+    {
+        this(new Builder(maxCapacity).concurrencyLevel(concurrencyLevel));
+    }
+
+    /*
+    bufferedReads: get() hits skip the lock and record the access in a per-segment lossy
+    ring buffer that is replayed onto the recency list in batches (when half full, or before
+    the next put). Eviction order becomes approximate LRU, but hot-key reads no longer
+    contend with each other.
+    */
+    public LRUCache(int maxCapacity, int concurrencyLevel, boolean bufferedReads)
+    {
+        this(new Builder(maxCapacity).concurrencyLevel(concurrencyLevel).bufferedReads(bufferedReads));
+    }
+
+    private LRUCache(Builder builder)
+    {
+        builder.validate();
+        this.maxCapacity = builder.maxCapacity;
+        int segmentCount = Integer.highestOneBit(Math.min(builder.concurrencyLevel, maxCapacity));
+        this.segments = new Segment[segmentCount];
+        this.segmentMask = segmentCount - 1;
+        this.loadExecutor = builder.loadExecutor;
+        this.refreshAheadNanos = builder.refreshAheadNanos;
+        this.ticker = builder.ticker;
+        this.stats = builder.recordStats ? new StatsRecorder() : null;
+        int base = maxCapacity / segmentCount;
+        int remainder = maxCapacity % segmentCount;
+
+        FileChannel spillChannel = null;
+        try {
+            if (builder.spillFile != null) {
+                spillChannel = FileChannel.open(builder.spillFile, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            int spillRegionBytes = (int) Math.min(Integer.MAX_VALUE, builder.spillBytes / segmentCount);
+            for (int i = 0; i < segmentCount; i++) {
+                OffHeapValueStore store = builder.offHeapValues ? new OffHeapValueStore() : null;
+                MappedSpillTier spill = spillChannel != null
+                        ? new MappedSpillTier(spillChannel, (long) i * spillRegionBytes, spillRegionBytes) : null;
+                segments[i] = new Segment(base + (i < remainder ? 1 : 0), builder, stats, store, spill);
+            }
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException("Failed to map spill file: " + builder.spillFile, ex);
+        }
+        finally {
+            // mappings stay valid after the channel is closed
+            closeQuietly(spillChannel);
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel)
+    {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        }
+        catch (IOException ex) {
+            System.err.println("Failed to close spill file: " + ex.getMessage());
+        }
+    }
+
+    public static class Builder
+    {
+        private final int maxCapacity;
+        private int concurrencyLevel = 1;
+        private Eviction eviction = Eviction.LRU;
+        private boolean bufferedReads;
+        private boolean offHeapValues;
+        private Path spillFile;
+        private long spillBytes;
+        private long expireAfterWriteNanos;
+        private long expireAfterAccessNanos;
+        private RemovalListener removalListener;
+        private LongSupplier ticker = System::nanoTime;
+        private Executor loadExecutor = ForkJoinPool.commonPool();
+        private long refreshAheadNanos;
+        private boolean recordStats;
+
+        public Builder(int maxCapacity)
+        {
+            this.maxCapacity = maxCapacity;
+        }
+
+        public Builder concurrencyLevel(int concurrencyLevel)
+        {
+            this.concurrencyLevel = concurrencyLevel;
+            return this;
+        }
+
+        public Builder eviction(Eviction eviction)
+        {
+            this.eviction = eviction;
+            return this;
+        }
+
+        public Builder bufferedReads(boolean bufferedReads)
+        {
+            this.bufferedReads = bufferedReads;
+            return this;
+        }
+
+        // store values as UTF-8 bytes in direct ByteBuffer slabs instead of heap Strings
+        public Builder offHeapValues(boolean offHeapValues)
+        {
+            this.offHeapValues = offHeapValues;
+            return this;
+        }
+
+        // keep entries evicted from the hot tier in a memory-mapped file of the given size
+        public Builder spillFile(Path spillFile, long spillBytes)
+        {
+            this.spillFile = spillFile;
+            this.spillBytes = spillBytes;
+            return this;
+        }
+
+        // default time-to-live, counted from the last put; put(key, value, ttl, unit) overrides it per entry
+        public Builder expireAfterWrite(long duration, TimeUnit unit)
+        {
+            this.expireAfterWriteNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        // entries also expire once they have not been read or written for this long
+        public Builder expireAfterAccess(long duration, TimeUnit unit)
+        {
+            this.expireAfterAccessNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        public Builder removalListener(RemovalListener removalListener)
+        {
+            this.removalListener = removalListener;
+            return this;
+        }
+
+        // nanosecond time source for expiry, replaceable for tests
+        public Builder ticker(LongSupplier ticker)
+        {
+            this.ticker = ticker;
+            return this;
+        }
+
+        // runs getOrLoadAsync loads and refresh-ahead reloads
+        public Builder loadExecutor(Executor loadExecutor)
+        {
+            this.loadExecutor = loadExecutor;
+            return this;
+        }
+
+        /*
+        A getOrLoad hit on an entry due to expire within this window returns the current value
+        and reloads it in the background with the caller's loader, so hot keys never miss on expiry.
+        */
+        public Builder refreshAhead(long duration, TimeUnit unit)
+        {
+            this.refreshAheadNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        // hit/miss, load, eviction and lock contention counters; off by default
+        public Builder recordStats(boolean recordStats)
+        {
+            this.recordStats = recordStats;
+            return this;
+        }
+
+        public LRUCache build()
+        {
+            return new LRUCache(this);
+        }
+
+        private void validate()
+        {
+            if (maxCapacity <= 0 || concurrencyLevel <= 0) {
+                throw new IllegalArgumentException("Capacity and concurrency level must be positive.");
+            }
+            if (bufferedReads && (offHeapValues || spillFile != null)) {
+                // lock-free readers could observe a slab chunk or spill record while it is being reused
+                throw new IllegalArgumentException("Buffered reads cannot be combined with off-heap or spilled values.");
+            }
+            if (expireAfterWriteNanos < 0 || expireAfterAccessNanos < 0 || refreshAheadNanos < 0) {
+                throw new IllegalArgumentException("Expiry durations cannot be negative.");
+            }
+            if (spillFile != null && spillBytes <= 0) {
+                throw new IllegalArgumentException("Spill file size must be positive.");
+            }
+        }
+    }
+
+    private Segment segmentFor(int key)
+    {
+        int h = key * 0x9E3779B9; // fibonacci hashing spreads sequential ids across segments
+        return segments[(h ^ (h >>> 16)) & segmentMask];
+    }
+
+    // returns null when the key is not cached; misses are counted by stats(), not logged
+    public String get(int id)
+    {
+        return getIfPresent(id);
+    }
+
+    public String getIfPresent(int id)
+    {
+        String value = segmentFor(id).getIfPresent(id);
+        if (stats != null) {
+            stats.recordLookup(value != null);
+        }
+        return value;
+    }
+
+    public void put(int key, String value)
+    {
+        segmentFor(key).put(key, value, 0);
+    }
+
+    // put with a time-to-live for this entry only
+    public void put(int key, String value, long timeToLive, TimeUnit unit)
+    {
+        if (timeToLive <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive.");
+        }
+        segmentFor(key).put(key, value, unit.toNanos(timeToLive));
+    }
+
+    /*
+    Read-through lookup. On a miss only one caller per key runs the loader (on its own thread);
+    concurrent callers for the same key wait for that load instead of hitting the backing store.
+    A null from the loader means absent and is not cached. Loader failures are rethrown to every
+    waiting caller and nothing is cached. A put made while the loader runs is newer than what it
+    loads, so it is kept and returned instead of the loaded value.
+    */
+    public String getOrLoad(int key, IntFunction<String> loader)
+    {
+        String value = getIfPresent(key);
+        if (value != null) {
+            refreshIfExpiring(key, value, loader);
+            return value;
+        }
+        CompletableFuture<String> load = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlightLoads.putIfAbsent(key, load);
+        if (existing != null) {
+            return join(existing);
+        }
+        runLoad(key, loader, load);
+        return join(load);
+    }
+
+    // same as getOrLoad, but the winning load runs on the load executor
+    public CompletableFuture<String> getOrLoadAsync(int key, IntFunction<String> loader)
+    {
+        String value = getIfPresent(key);
+        if (value != null) {
+            refreshIfExpiring(key, value, loader);
+            return CompletableFuture.completedFuture(value);
+        }
+        CompletableFuture<String> load = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlightLoads.putIfAbsent(key, load);
+        if (existing != null) {
+            return existing;
+        }
+        loadExecutor.execute(() -> runLoad(key, loader, load));
+        return load;
+    }
+
+    /*
+    Bulk read-through: hits are served from the cache, keys already being loaded are awaited,
+    and all remaining misses go to the bulk loader in one call. Keys the loader does not
+    return are absent from the result.
+    */
+    public Map<Integer,String> getAll(Collection<Integer> keys, Function<Set<Integer>,Map<Integer,String>> bulkLoader)
+    {
+        Map<Integer,String> result = new HashMap<>();
+        Map<Integer,CompletableFuture<String>> awaited = new HashMap<>();
+        Map<Integer,CompletableFuture<String>> owned = new HashMap<>();
+        for (Integer key : keys) {
+            if (result.containsKey(key) || awaited.containsKey(key) || owned.containsKey(key)) {
+                continue;
+            }
+            String value = getIfPresent(key);
+            if (value != null) {
+                result.put(key, value);
+                continue;
+            }
+            CompletableFuture<String> load = new CompletableFuture<>();
+            CompletableFuture<String> existing = inFlightLoads.putIfAbsent(key, load);
+            if (existing != null) {
+                awaited.put(key, existing);
+            }
+            else {
+                owned.put(key, load);
+            }
+        }
+
+        if (!owned.isEmpty()) {
+            Map<Integer,String> loaded;
+            long start = stats != null ? System.nanoTime() : 0;
+            try {
+                loaded = bulkLoader.apply(Collections.unmodifiableSet(owned.keySet()));
+                recordLoad(start, loaded != null);
+            }
+            catch (RuntimeException | Error ex) {
+                recordLoad(start, false);
+                owned.forEach((key, load) -> {
+                    inFlightLoads.remove(key, load);
+                    load.completeExceptionally(ex);
+                });
+                throw ex;
+            }
+            owned.forEach((key, load) -> {
+                String value = completeLoad(key, null, loaded == null ? null : loaded.get(key), load);
+                if (value != null) {
+                    result.put(key, value);
+                }
+            });
+        }
+
+        awaited.forEach((key, load) -> {
+            String value = join(load);
+            if (value != null) {
+                result.put(key, value);
+            }
+        });
+        return result;
+    }
+
+    private void runLoad(int key, IntFunction<String> loader, CompletableFuture<String> load)
+    {
+        // a load that finished between our miss and winning the slot has already cached the value
+        String cached = segmentFor(key).getIfPresent(key);
+        if (cached != null) {
+            inFlightLoads.remove(key, load);
+            load.complete(cached);
+            return;
+        }
+        String value;
+        long start = stats != null ? System.nanoTime() : 0;
+        try {
+            value = loader.apply(key);
+            recordLoad(start, value != null);
+        }
+        catch (RuntimeException | Error ex) {
+            recordLoad(start, false);
+            inFlightLoads.remove(key, load);
+            load.completeExceptionally(ex);
+            return;
+        }
+        completeLoad(key, null, value, load);
+    }
+
+    /*
+    Caches before leaving the in-flight map, so later callers find the value rather than a second
+    load. Completes with what ends up cached: a put that landed while the loader ran wins.
+    */
+    private String completeLoad(int key, String expected, String value, CompletableFuture<String> load)
+    {
+        String cached = value == null ? null : segmentFor(key).putLoaded(key, expected, value);
+        inFlightLoads.remove(key, load);
+        load.complete(cached);
+        return cached;
+    }
+
+    // current is the value being served; a put replacing it before the reload finishes wins over the reload
+    private void refreshIfExpiring(int key, String current, IntFunction<String> loader)
+    {
+        if (refreshAheadNanos <= 0) {
+            return;
+        }
+        long expiresAt = segmentFor(key).expiresAt(key);
+        if (expiresAt == NEVER || expiresAt - ticker.getAsLong() > refreshAheadNanos) {
+            return;
+        }
+        CompletableFuture<String> reload = new CompletableFuture<>();
+        if (inFlightLoads.putIfAbsent(key, reload) != null) {
+            return; // already loading
+        }
+        loadExecutor.execute(() -> {
+            long start = stats != null ? System.nanoTime() : 0;
+            try {
+                String value = loader.apply(key);
+                recordLoad(start, value != null);
+                completeLoad(key, current, value, reload);
+            }
+            catch (RuntimeException | Error ex) {
+                recordLoad(start, false);
+                // keep serving the current value until it expires
+                inFlightLoads.remove(key, reload);
+                reload.completeExceptionally(ex);
+            }
+        });
+    }
+
+    private void recordLoad(long start, boolean success)
+    {
+        if (stats != null) {
+            stats.recordLoad(System.nanoTime() - start, success);
+        }
+    }
+
+    private static String join(CompletableFuture<String> load)
+    {
+        try {
+            return load.join();
+        }
+        catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /*
+    Expired entries are reclaimed lazily when they are looked up and by the timer wheel
+    sweep that runs with every locked operation; call this to sweep idle segments too.
+    */
+    public void cleanUp()
+    {
+        for (Segment segment : segments) {
+            segment.cleanUp();
+        }
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public int getMaxCapacity() {
+        return maxCapacity;
+    }
+
+    public CacheStats stats()
+    {
+        if (stats == null) {
+            throw new IllegalStateException("Stats are disabled; enable them with Builder.recordStats(true).");
+        }
+        return stats.snapshot();
+    }
+
+    // exposes stats() as cache.lru:type=LRUCache,name=<name> on the platform MBean server
+    public ObjectName registerMBean(String name)
+    {
+        if (stats == null) {
+            throw new IllegalStateException("Stats are disabled; enable them with Builder.recordStats(true).");
+        }
+        try {
+            ObjectName objectName = new ObjectName("cache.lru:type=LRUCache,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new CacheStatsMBean(this), objectName);
+            return objectName;
+        }
+        catch (JMException ex) {
+            throw new IllegalStateException("Failed to register cache MBean " + name, ex);
+        }
+    }
+
+    public void unregisterMBean(ObjectName objectName)
+    {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+        catch (JMException ex) {
+            throw new IllegalStateException("Failed to unregister cache MBean " + objectName, ex);
+        }
+    }
+
+    // walks the recency list and checks it agrees with the map; returns the number of mismatches
+    int checkConsistency()
+    {
+        int mismatches = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                int[] listSize = new int[1];
+                int[] unmapped = new int[1];
+                segment.policy.forEach(node -> {
+                    listSize[0]++;
+                    if (segment.idToDataMap.get(node.key) != node) {
+                        unmapped[0]++;
+                    }
+                });
+                mismatches += unmapped[0];
+                if (listSize[0] != segment.size() || listSize[0] > segment.maxCapacity) {
+                    mismatches++;
+                }
+            }
+            finally {
+                segment.lock.unlock();
+            }
+        }
+        return mismatches;
+    }
+
+    // hammer a segmented cache from many threads: no entries lost, capacity bound held
+    private static void stressTest(Eviction eviction, boolean bufferedReads) throws InterruptedException {
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+        int capacity = 1_000;
+        LRUCache cache = new Builder(capacity).concurrencyLevel(16).eviction(eviction).bufferedReads(bufferedReads).build();
+        AtomicInteger violations = new AtomicInteger();
+
+        // phase 1: disjoint insert-only writers; each segment must keep min(inserted, its capacity) keys
+        int keysPerThread = 100;
+        runConcurrently(threads, t -> {
+            for (int i = 0; i < keysPerThread; i++) {
+                int key = t * keysPerThread + i;
+                cache.put(key, "data-" + key);
+                if (cache.size() > capacity) {
+                    violations.incrementAndGet();
+                }
+            }
+        });
+        int[] insertedPerSegment = new int[cache.segments.length];
+        for (int key = 0; key < threads * keysPerThread; key++) {
+            int h = key * 0x9E3779B9;
+            insertedPerSegment[(h ^ (h >>> 16)) & cache.segmentMask]++;
+        }
+        int lost = 0;
+        for (int i = 0; i < cache.segments.length; i++) {
+            lost += Math.min(insertedPerSegment[i], cache.segments[i].maxCapacity) - cache.segments[i].size();
+        }
+
+        // phase 2: mixed reads and writes over a key space larger than the cache
+        runConcurrently(threads, t -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < 50_000; i++) {
+                int key = random.nextInt(capacity * 4);
+                if (random.nextBoolean()) {
+                    cache.put(key, "data-" + key);
+                } else {
+                    String value = cache.get(key);
+                    if (value != null && !value.equals("data-" + key)) {
+                        violations.incrementAndGet();
+                    }
+                }
+                if (cache.size() > capacity || cache.segmentFor(key).pendingReads() > Segment.READ_BUFFER_SIZE) {
+                    violations.incrementAndGet();
+                }
+            }
+        });
+
+        int inconsistencies = cache.checkConsistency();
+        System.out.println("stress: eviction=" + eviction + " bufferedReads=" + bufferedReads + " threads=" + threads + " lost=" + lost + " size=" + cache.size()
+                + "/" + capacity + " violations=" + violations.get() + " inconsistencies=" + inconsistencies);
+        if (lost != 0 || violations.get() != 0 || inconsistencies != 0) {
+            throw new IllegalStateException("Stress test failed: eviction=" + eviction + " bufferedReads=" + bufferedReads
+                    + " lost=" + lost + " violations=" + violations.get() + " inconsistencies=" + inconsistencies);
+        }
+    }
+
+    /*
+    Trace replay: every key is looked up and inserted on a miss, as a read-through cache would.
+    A trace file holds one key per line; numeric keys are used as is, anything else is hashed.
+    */
+    static double hitRatio(LRUCache cache, int[] trace)
+    {
+        int hits = 0;
+        for (int key : trace) {
+            if (cache.getIfPresent(key) != null) {
+                hits++;
+            }
+            else {
+                cache.put(key, "");
+            }
+        }
+        return trace.length == 0 ? 0 : (double) hits / trace.length;
+    }
+
+    static int[] readTrace(Path file) throws IOException
+    {
+        List<String> lines = Files.readAllLines(file);
+        int[] trace = new int[lines.size()];
+        int length = 0;
+        for (String line : lines) {
+            String token = line.trim();
+            if (token.isEmpty() || token.startsWith("#")) {
+                continue;
+            }
+            int key;
+            try {
+                key = Integer.parseInt(token);
+            }
+            catch (NumberFormatException ex) {
+                key = token.hashCode();
+            }
+            trace[length++] = key;
+        }
+        return Arrays.copyOf(trace, length);
+    }
+
+    // zipf-distributed working set interrupted by one-off scans of cold keys
+    static int[] syntheticTrace(int length, int keySpace, int scanEvery, int scanLength)
+    {
+        double[] cumulative = new double[keySpace];
+        double sum = 0;
+        for (int i = 0; i < keySpace; i++) {
+            sum += 1.0 / Math.pow(i + 1, 0.9);
+            cumulative[i] = sum;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int[] trace = new int[length];
+        int nextColdKey = keySpace;
+        for (int i = 0; i < length; ) {
+            if (i > 0 && i % scanEvery == 0) {
+                for (int j = 0; j < scanLength && i < length; j++) {
+                    trace[i++] = nextColdKey++;
+                }
+                continue;
+            }
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            trace[i++] = rank >= 0 ? rank : -rank - 1;
+        }
+        return trace;
+    }
+
+    static void runConcurrently(int threads, IntConsumer task) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int threadId = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                task.accept(threadId);
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        LRUCache cache = new LRUCache(10);
+        for(int i=0;i<12;i++)
+        {
+            cache.put(i, "data-"+i);
+        }
+        for(int i=0;i<=12;i++)
+        {
+            System.out.println(cache.get(i));
+        }
+
+        // buffered reads: accesses are replayed before the next put, so the hot key survives eviction
+        LRUCache buffered = new LRUCache(4, 1, true);
+        for (int i = 0; i < 4; i++) {
+            buffered.put(i, "data-" + i);
+        }
+        for (int i = 0; i < 3; i++) {
+            buffered.get(0);
+        }
+        buffered.put(4, "data-4");
+        System.out.println("hot key kept: " + (buffered.get(0) != null) + ", pending reads: " + buffered.segments[0].pendingReads());
+
+        // off-heap values with a memory-mapped spill tier: evicted entries are still served
+        Path spillFile = Files.createTempFile("lru-spill", ".dat");
+        LRUCache offHeap = new Builder(100).concurrencyLevel(4).offHeapValues(true).spillFile(spillFile, 8L << 20).build();
+        String payload = "x".repeat(2_000);
+        for (int i = 0; i < 300; i++) {
+            offHeap.put(i, payload + i);
+        }
+        int served = 0;
+        for (int i = 0; i < 300; i++) {
+            if ((payload + i).equals(offHeap.get(i))) {
+                served++;
+            }
+        }
+        System.out.println("off-heap: hot size=" + offHeap.size() + " served=" + served + "/300");
+        Files.deleteIfExists(spillFile);
+
+        // a spill tier too small for the overflow: whatever it drops is reported as a size eviction
+        Path smallSpillFile = Files.createTempFile("lru-spill", ".dat");
+        AtomicInteger dropped = new AtomicInteger();
+        LRUCache smallSpill = new Builder(100).concurrencyLevel(4).offHeapValues(true).spillFile(smallSpillFile, 256L << 10)
+                .removalListener((key, value, cause) -> {
+                    if (cause == RemovalCause.SIZE && value.equals(payload + key)) {
+                        dropped.incrementAndGet();
+                    }
+                }).build();
+        for (int i = 0; i < 300; i++) {
+            smallSpill.put(i, payload + i);
+        }
+        int spilled = 0;
+        for (Segment segment : smallSpill.segments) {
+            spilled += segment.spillTier.size();
+        }
+        System.out.println("small spill: hot=" + smallSpill.size() + " spilled=" + spilled + " dropped=" + dropped.get());
+        if (smallSpill.size() + spilled + dropped.get() != 300) {
+            throw new IllegalStateException("Spill tier dropped entries without reporting them");
+        }
+        Files.deleteIfExists(smallSpillFile);
+
+        // expiry on a manual clock: per-entry TTL, expire-after-access and the wheel sweep
+        AtomicLong clock = new AtomicLong();
+        AtomicInteger expiredCount = new AtomicInteger();
+        LRUCache expiring = new Builder(1_000).expireAfterAccess(10, TimeUnit.SECONDS).ticker(clock::get)
+                .removalListener((key, value, cause) -> {
+                    if (cause == RemovalCause.EXPIRED) {
+                        expiredCount.incrementAndGet();
+                    }
+                }).build();
+        for (int i = 0; i < 500; i++) {
+            expiring.put(i, "data-" + i);
+        }
+        expiring.put(500, "short-lived", 2, TimeUnit.SECONDS);
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(3));
+        System.out.println("ttl expired: " + (expiring.getIfPresent(500) == null));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        expiring.getIfPresent(0); // keeps key 0 alive for another 10s
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        expiring.cleanUp();
+        System.out.println("after sweep: size=" + expiring.size() + " expired=" + expiredCount.get());
+
+        // thundering herd: every thread misses the same key, the backing store sees one load
+        LRUCache loading = new Builder(1_000).concurrencyLevel(8).build();
+        AtomicInteger loads = new AtomicInteger();
+        IntFunction<String> slowLoader = key -> {
+            loads.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return "loaded-" + key;
+        };
+        runConcurrently(32, t -> loading.getOrLoad(42, slowLoader));
+        List<CompletableFuture<String>> pending = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            pending.add(loading.getOrLoadAsync(43, slowLoader));
+        }
+        pending.forEach(CompletableFuture::join);
+        AtomicInteger bulkCalls = new AtomicInteger();
+        Map<Integer,String> bulk = loading.getAll(List.of(42, 43, 44, 45, 46), missing -> {
+            bulkCalls.incrementAndGet();
+            Map<Integer,String> values = new HashMap<>();
+            missing.forEach(key -> values.put(key, "bulk-" + key));
+            return values;
+        });
+        System.out.println("loads: single=" + loads.get() + " (2 keys, 64 callers) bulkCalls=" + bulkCalls.get() + " result=" + bulk.size());
+
+        // a put that lands while the loader runs is newer than the loaded value and must survive it
+        CountDownLatch loaderStarted = new CountDownLatch(1);
+        CountDownLatch putDone = new CountDownLatch(1);
+        CompletableFuture<String> racing = loading.getOrLoadAsync(50, key -> {
+            loaderStarted.countDown();
+            try {
+                putDone.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return "stale-" + key;
+        });
+        loaderStarted.await();
+        loading.put(50, "fresh-50");
+        putDone.countDown();
+        if (!"fresh-50".equals(racing.join()) || !"fresh-50".equals(loading.getIfPresent(50))) {
+            throw new IllegalStateException("A load overwrote a newer put: " + racing.join() + ", cached " + loading.getIfPresent(50));
+        }
+        System.out.println("load racing a put: kept " + loading.getIfPresent(50));
+
+        // stats: snapshot API and the same numbers over JMX
+        LRUCache measured = new Builder(100).concurrencyLevel(4).recordStats(true).build();
+        runConcurrently(8, t -> {
+            for (int i = 0; i < 10_000; i++) {
+                measured.getOrLoad(ThreadLocalRandom.current().nextInt(200), key -> "data-" + key);
+            }
+        });
+        ObjectName objectName = measured.registerMBean("demo");
+        try {
+            Object hitRate = ManagementFactory.getPlatformMBeanServer().getAttribute(objectName, "HitRate");
+            System.out.println("stats: " + measured.stats() + " | jmx HitRate=" + hitRate);
+        }
+        catch (JMException ex) {
+            System.err.println("Failed to read MBean: " + ex.getMessage());
+        }
+        finally {
+            measured.unregisterMBean(objectName);
+        }
+
+        // refresh-ahead: a hit inside the window reloads in the background before the entry expires
+        AtomicLong refreshClock = new AtomicLong();
+        LRUCache refreshing = new Builder(100).expireAfterWrite(10, TimeUnit.SECONDS).refreshAhead(2, TimeUnit.SECONDS)
+                .ticker(refreshClock::get).loadExecutor(Runnable::run).build();
+        AtomicInteger version = new AtomicInteger();
+        IntFunction<String> versionedLoader = key -> "v" + version.incrementAndGet();
+        refreshing.getOrLoad(1, versionedLoader);
+        refreshClock.addAndGet(TimeUnit.SECONDS.toNanos(9));
+        String stale = refreshing.getOrLoad(1, versionedLoader);
+        refreshClock.addAndGet(TimeUnit.SECONDS.toNanos(5));
+        System.out.println("refresh-ahead: served " + stale + ", now " + refreshing.getIfPresent(1));
+
+        // hit ratios on a recorded trace (first argument) or a synthetic scan-heavy one
+        int[] trace = args.length > 0 ? readTrace(Path.of(args[0])) : syntheticTrace(2_000_000, 50_000, 100_000, 20_000);
+        for (int capacity : new int[] {1_000, 10_000}) {
+            for (Eviction eviction : Eviction.values()) {
+                LRUCache replayed = new Builder(capacity).eviction(eviction).build();
+                System.out.printf("trace: capacity=%d eviction=%s hit ratio=%.2f%%%n", capacity, eviction, 100 * hitRatio(replayed, trace));
+            }
+        }
+
+        for (Eviction eviction : Eviction.values()) {
+            stressTest(eviction, false);
+            stressTest(eviction, true);
+        }
     }
 }
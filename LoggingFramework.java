@@ -1,12 +1,63 @@
 
 package logger.logmanager;
 
-import java.io.FileWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 public class LoggingFramework {
 
@@ -16,8 +67,11 @@ public class LoggingFramework {
 
     public static class LogMessage
     {
+        static final Object[] NO_ARGS = new Object[0];
+
         LogLevel level;
-        String message;
+        String message; // with args, a template whose {} placeholders are filled in only when rendered
+        Object[] args = NO_ARGS;
         LocalDateTime timestamp;
         public LogMessage(LogLevel level, String message, LocalDateTime timestamp)
         {
@@ -26,14 +80,55 @@ public class LoggingFramework {
             this.timestamp = timestamp;
         }
 
+        public LogMessage(LogLevel level, String template, Object[] args, LocalDateTime timestamp)
+        {
+            this(level, template, timestamp);
+            this.args = args;
+        }
+
+        public String getFormattedMessage()
+        {
+            return format(message, args);
+        }
+
         public String toString()
         {
-            return "[ "+level+" ] [ "+timestamp.toString()+" ] "+message+ "\n";
+            return "[ "+level+" ] [ "+timestamp.toString()+" ] "+getFormattedMessage()+ "\n";
+        }
+
+        // replaces each {} with the next argument; extra placeholders stay, extra arguments are ignored
+        static String format(String template, Object[] args)
+        {
+            if (args.length == 0) {
+                return template;
+            }
+            StringBuilder builder = new StringBuilder(template.length() + 16 * args.length);
+            int argIndex = 0;
+            int from = 0;
+            int placeholder;
+            while (argIndex < args.length && (placeholder = template.indexOf("{}", from)) >= 0) {
+                builder.append(template, from, placeholder).append(args[argIndex++]);
+                from = placeholder + 2;
+            }
+            return builder.append(template, from, template.length()).toString();
         }
     }
     public interface LogHandler
     {
         public void log(LogMessage message);
+
+        // called by the worker after each batch of messages (and periodically when idle)
+        default void flush() {
+        }
+
+        // true if flush() can have work to do while no messages arrive, so an idle worker must still call it
+        default boolean flushesWhenIdle() {
+            return false;
+        }
+
+        // called once on shutdown, after the last message
+        default void close() {
+        }
     }
 
     public static class ConsoleLogHandler implements LogHandler
@@ -44,82 +139,1608 @@ public class LoggingFramework {
         }
     }
 
+    /*
+    When buffered file output reaches the disk:
+    PER_BATCH writes once per worker batch (data is in the OS page cache, survives a process crash),
+    INTERVAL writes at most once per flush interval or when the buffer fills (fewest syscalls),
+    FORCE writes and fsyncs once per batch (survives power loss, costs an fsync per batch).
+    */
+    public enum FlushPolicy {
+        PER_BATCH, INTERVAL, FORCE
+    }
+
+    /*
+    Appends to one long-lived FileChannel. Messages are encoded into a direct ByteBuffer and
+    the whole batch goes out in a single write when the worker calls flush().
+    Only the LogManager worker calls log/flush/close, so no locking is needed.
+    */
     public static class FileLogHandler implements LogHandler
     {
+        private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
         private String filePath;
+        private final FlushPolicy flushPolicy;
+        private final long flushIntervalNanos;
+        private final ByteBuffer buffer;
+        private FileChannel channel;
+        private long lastWriteNanos = System.nanoTime();
+
         public FileLogHandler(String filePath)
+        {
+            this(filePath, FlushPolicy.PER_BATCH, 0);
+        }
+
+        public FileLogHandler(String filePath, FlushPolicy flushPolicy, long flushIntervalMillis)
+        {
+            this(filePath, flushPolicy, flushIntervalMillis, DEFAULT_BUFFER_SIZE);
+        }
+
+        public FileLogHandler(String filePath, FlushPolicy flushPolicy, long flushIntervalMillis, int bufferSize)
         {
             this.filePath = filePath;
+            this.flushPolicy = flushPolicy;
+            this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+            this.buffer = ByteBuffer.allocateDirect(bufferSize);
         }
 
         @Override
         public void log(LogMessage message) {
-            try(FileWriter writer = new FileWriter(filePath))
-            {
-                writer.write(message.toString());
+            if (encode(message, buffer)) {
+                return;
             }
-            catch (IOException ex)
-            {
-                System.err.println("Failed to write to file: "+ ex.getMessage());
+            writeBuffer();
+            if (encode(message, buffer)) {
+                return;
+            }
+            // larger than the whole buffer: encode into a big enough scratch buffer and write it directly
+            ByteBuffer large = ByteBuffer.allocate(buffer.capacity() * 2);
+            while (!encode(message, large)) {
+                large = ByteBuffer.allocate(large.capacity() * 2);
+            }
+            large.flip();
+            write(large);
+        }
+
+        // appends one whole message to the buffer, or leaves it untouched and returns false if it does not fit
+        protected boolean encode(LogMessage message, ByteBuffer target)
+        {
+            byte[] bytes = message.toString().getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > target.remaining()) {
+                return false;
+            }
+            target.put(bytes);
+            return true;
+        }
+
+        @Override
+        public void flush() {
+            if (flushPolicy == FlushPolicy.INTERVAL && System.nanoTime() - lastWriteNanos < flushIntervalNanos) {
+                return;
+            }
+            if (buffer.position() == 0) {
+                return;
+            }
+            writeBuffer();
+            if (flushPolicy == FlushPolicy.FORCE) {
+                force();
+            }
+        }
+
+        @Override
+        public boolean flushesWhenIdle() {
+            return flushPolicy == FlushPolicy.INTERVAL;
+        }
+
+        @Override
+        public void close() {
+            writeBuffer();
+            force();
+            if (channel != null) {
+                try {
+                    channel.close();
+                }
+                catch (IOException ex) {
+                    System.err.println("Failed to close file: " + ex.getMessage());
+                }
+                channel = null;
+            }
+        }
+
+        private void writeBuffer()
+        {
+            if (buffer.position() == 0) {
+                return;
+            }
+            buffer.flip();
+            write(buffer);
+            buffer.clear();
+            lastWriteNanos = System.nanoTime();
+        }
+
+        private void write(ByteBuffer bytes)
+        {
+            try {
+                if (channel == null) {
+                    channel = FileChannel.open(Path.of(filePath), StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            }
+            catch (IOException | InvalidPathException ex) {
+                System.err.println("Failed to write to file: " + ex.getMessage());
+            }
+        }
+
+        private void force()
+        {
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.force(false);
+            }
+            catch (IOException ex) {
+                System.err.println("Failed to sync file: " + ex.getMessage());
             }
         }
     }
 
-    public static class LogManager
+    /*
+    Compact binary log format, written by BinaryFileLogHandler and read by BinaryLogDecoder:
+      header   'B' 'L' 'O' 'G' version                      (starts a file; ids restart after it)
+      template 0x01 id:int length:int utf8                   (first use of a template in this run)
+      event    0x02 epochNanos:long level:byte id:int count:byte arg*
+      message  0x03 epochNanos:long level:byte length:int utf8   (a message without arguments)
+      arg      'N' | 'Z' byte | 'I' int | 'J' long | 'D' double | 'S' length:int utf8
+    epochNanos is the LocalDateTime read as UTC, so it decodes back to the same local time.
+    Formatting happens only in the decoder: writing an event is a few primitive puts.
+    Only templates with arguments go into the dictionary: a message without any is usually
+    built by the caller and unique, so it is written inline. Once the dictionary holds
+    MAX_TEMPLATES, the writer starts a new header and numbers templates from 0 again.
+    */
+    static final byte[] BINARY_MAGIC = {'B', 'L', 'O', 'G'};
+    static final byte BINARY_VERSION = 2; // version 1 files have no message records
+    static final byte TEMPLATE_RECORD = 0x01;
+    static final byte EVENT_RECORD = 0x02;
+    static final byte MESSAGE_RECORD = 0x03;
+
+    public static class BinaryFileLogHandler extends FileLogHandler
     {
-        private Set<LogLevel> enabledLevels;
-        private Set<LogHandler> logHandlers;
-        private Thread workerThread;
-        private BlockingQueue<LogMessage> blockingQueue;
-        private volatile boolean running = true;
-        public LogManager(Set<LogLevel> enabledLevels, Set<LogHandler> logHandlers)
+        static final int MAX_TEMPLATES = 4096;
+
+        private final Map<String,Integer> templateIds = new HashMap<>();
+        private boolean headerWritten;
+
+        public BinaryFileLogHandler(String filePath)
         {
-            this.enabledLevels = enabledLevels;
-            this.logHandlers = logHandlers;
-            this.blockingQueue = new LinkedBlockingQueue<>();
-            workerThread = new Thread(this::processLogs);
-            workerThread.start();
+            super(filePath);
+        }
 
-            Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+        public BinaryFileLogHandler(String filePath, FlushPolicy flushPolicy, long flushIntervalMillis)
+        {
+            super(filePath, flushPolicy, flushIntervalMillis);
+        }
+
+        @Override
+        protected boolean encode(LogMessage message, ByteBuffer target) {
+            int start = target.position();
+            try {
+                boolean inline = message.args.length == 0;
+                Integer templateId = inline ? null : templateIds.get(message.message);
+                boolean newTemplate = !inline && templateId == null;
+                boolean restart = newTemplate && templateIds.size() == MAX_TEMPLATES;
+                if (!headerWritten || restart) {
+                    target.put(BINARY_MAGIC).put(BINARY_VERSION);
+                }
+                LocalDateTime timestamp = message.timestamp;
+                long epochNanos = timestamp.toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L + timestamp.getNano();
+                if (inline) {
+                    target.put(MESSAGE_RECORD).putLong(epochNanos).put((byte) message.level.ordinal());
+                    putString(target, message.message);
+                    headerWritten = true;
+                    return true;
+                }
+                if (newTemplate) {
+                    templateId = restart ? 0 : templateIds.size();
+                    target.put(TEMPLATE_RECORD).putInt(templateId);
+                    putString(target, message.message);
+                }
+                target.put(EVENT_RECORD)
+                        .putLong(epochNanos)
+                        .put((byte) message.level.ordinal())
+                        .putInt(templateId)
+                        .put((byte) Math.min(message.args.length, Byte.MAX_VALUE));
+                for (int i = 0; i < message.args.length && i < Byte.MAX_VALUE; i++) {
+                    putArg(target, message.args[i]);
+                }
+                // only commit state once the whole record fits
+                headerWritten = true;
+                if (restart) {
+                    templateIds.clear();
+                }
+                if (newTemplate) {
+                    templateIds.put(message.message, templateId);
+                }
+                return true;
+            }
+            catch (BufferOverflowException ex) {
+                target.position(start);
+                return false;
+            }
         }
 
-        private void processLogs()
+        private static void putArg(ByteBuffer target, Object arg)
         {
-            while(!blockingQueue.isEmpty() || running)
-            {
-                try {
-                    LogMessage message = blockingQueue.take(); // No CPU wastage: It only wakes up when a log is available.
-                    for (LogHandler logHandler : logHandlers) {
-                        logHandler.log(message);
+            if (arg == null) {
+                target.put((byte) 'N');
+            }
+            else if (arg instanceof Boolean) {
+                target.put((byte) 'Z').put((byte) ((Boolean) arg ? 1 : 0));
+            }
+            else if (arg instanceof Integer || arg instanceof Short || arg instanceof Byte) {
+                target.put((byte) 'I').putInt(((Number) arg).intValue());
+            }
+            else if (arg instanceof Long) {
+                target.put((byte) 'J').putLong((Long) arg);
+            }
+            else if (arg instanceof Double || arg instanceof Float) {
+                target.put((byte) 'D').putDouble(((Number) arg).doubleValue());
+            }
+            else {
+                target.put((byte) 'S');
+                putString(target, arg.toString());
+            }
+        }
+
+        private static void putString(ByteBuffer target, String value)
+        {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            target.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    /*
+    Reads the binary format back and renders each event as a text line (same layout as
+    LogMessage.toString) or as one JSON object per line.
+    */
+    public static class BinaryLogDecoder
+    {
+        private final DataInputStream in;
+        private final Map<Integer,String> templates = new HashMap<>();
+
+        public BinaryLogDecoder(InputStream in)
+        {
+            this.in = new DataInputStream(new BufferedInputStream(in));
+        }
+
+        // renders every event in the stream; fails on a truncated or corrupt record
+        public void decode(Writer out, boolean json) throws IOException
+        {
+            int tag;
+            while ((tag = in.read()) != -1) {
+                if (tag == BINARY_MAGIC[0]) {
+                    readHeader();
+                }
+                else if (tag == TEMPLATE_RECORD) {
+                    templates.put(in.readInt(), readString());
+                }
+                else if (tag == EVENT_RECORD || tag == MESSAGE_RECORD) {
+                    long epochNanos = in.readLong();
+                    LocalDateTime timestamp = LocalDateTime.ofEpochSecond(Math.floorDiv(epochNanos, 1_000_000_000L),
+                            (int) Math.floorMod(epochNanos, 1_000_000_000L), ZoneOffset.UTC);
+                    int ordinal = in.readByte();
+                    if (ordinal < 0 || ordinal >= LogLevel.values().length) {
+                        throw new IOException("Corrupt log: unknown level " + ordinal);
+                    }
+                    LogLevel level = LogLevel.values()[ordinal];
+                    String template;
+                    Object[] args;
+                    if (tag == MESSAGE_RECORD) {
+                        template = readString();
+                        args = LogMessage.NO_ARGS;
+                    }
+                    else {
+                        template = templates.getOrDefault(in.readInt(), "<unknown template>");
+                        args = new Object[in.readByte()];
+                        for (int i = 0; i < args.length; i++) {
+                            args[i] = readArg();
+                        }
+                    }
+                    out.write(json ? toJson(timestamp, level, template, args) : new LogMessage(level, template, args, timestamp).toString());
+                    if (json) {
+                        out.write('\n');
                     }
                 }
-                catch (Exception ex)
-                {
-                    System.err.println("Exception ocurred : "+ ex.getMessage());
+                else {
+                    throw new IOException("Corrupt log: unknown record tag " + tag);
                 }
             }
+            out.flush();
         }
-        public void shutdown()
+
+        private void readHeader() throws IOException
         {
-            running = false;
-            workerThread.interrupt();
-            processLogs();
+            byte[] magic = new byte[BINARY_MAGIC.length];
+            magic[0] = BINARY_MAGIC[0];
+            in.readFully(magic, 1, magic.length - 1);
+            if (!Arrays.equals(magic, BINARY_MAGIC)) {
+                throw new IOException("Corrupt log: bad header");
+            }
+            byte version = in.readByte();
+            if (version < 1 || version > BINARY_VERSION) {
+                throw new IOException("Unsupported log version " + version);
+            }
+            templates.clear(); // a new writer run starts numbering templates again
         }
 
-        public void log(LocalDateTime dateTime, LogLevel level, String message)
+        private Object readArg() throws IOException
+        {
+            int type = in.readByte();
+            switch (type) {
+                case 'N':
+                    return null;
+                case 'Z':
+                    return in.readByte() != 0;
+                case 'I':
+                    return in.readInt();
+                case 'J':
+                    return in.readLong();
+                case 'D':
+                    return in.readDouble();
+                case 'S':
+                    return readString();
+                default:
+                    throw new IOException("Corrupt log: unknown argument type " + type);
+            }
+        }
+
+        private String readString() throws IOException
+        {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static String toJson(LocalDateTime timestamp, LogLevel level, String template, Object[] args)
         {
-            if(!this.enabledLevels.contains(level)) return;
+            StringBuilder json = new StringBuilder("{\"timestamp\":\"").append(timestamp)
+                    .append("\",\"level\":\"").append(level)
+                    .append("\",\"message\":").append(jsonString(LogMessage.format(template, args)))
+                    .append(",\"template\":").append(jsonString(template))
+                    .append(",\"args\":[");
+            for (int i = 0; i < args.length; i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                Object arg = args[i];
+                json.append(arg == null || arg instanceof Boolean || arg instanceof Number ? String.valueOf(arg) : jsonString(arg.toString()));
+            }
+            return json.append("]}").toString();
+        }
 
-            this.blockingQueue.offer(new LogMessage(level, message, dateTime));
+        private static String jsonString(String value)
+        {
+            StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    json.append('\\').append(c);
+                }
+                else if (c < 0x20) {
+                    json.append(String.format("\\u%04x", (int) c));
+                }
+                else {
+                    json.append(c);
+                }
+            }
+            return json.append('"').toString();
         }
     }
 
-    public static void main(String[] args) {
-        // we need to support multiple logging levels (INFO, WARNING, ERROR, FATAL, DEBUG)
-        // should be configurable to include/exclude logging levels
-        // should have multiple output sources
-        // should be thread safe
-        LoggingFramework.LogManager logManager = new LoggingFramework.LogManager(Set.of(LogLevel.values()), Set.of(new ConsoleLogHandler(), new FileLogHandler("")));
-        logManager.log(LocalDateTime.now(),LogLevel.INFO,"First log");
+    /*
+    Appends messages straight into a memory-mapped segment file: a write is a memory copy,
+    with no syscall per batch. When the segment fills, or the rotation interval has passed,
+    it is closed and a new one is mapped. Closed segments are gzipped (their used length only)
+    and removed by a background thread, so the logging worker never waits on compression.
+    Segments are named <baseName>-<start millis>-<sequence>.log.
+    A file cannot be truncated or, on Windows, deleted while it is mapped, and the JDK only
+    unmaps a buffer once it is garbage collected. So a closed segment's mapping is released
+    through sun.misc.Unsafe.invokeCleaner, and its zero-filled tail truncated, when that is
+    available; otherwise the tail is left for the compressor to skip.
+    */
+    public static class MappedFileLogHandler implements LogHandler
+    {
+        private final Path directory;
+        private final String baseName;
+        private final int segmentBytes;
+        private final long rotateIntervalNanos;
+        private final ExecutorService compressor;
+        private FileChannel channel;
+        private MappedByteBuffer region;
+        private Path segmentPath;
+        private long segmentStartNanos;
+        private int sequence;
+
+        private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+        // rotateIntervalMillis <= 0 rotates by size only
+        public MappedFileLogHandler(String directory, String baseName, int segmentBytes, long rotateIntervalMillis)
+        {
+            this.directory = Path.of(directory);
+            this.baseName = baseName;
+            this.segmentBytes = segmentBytes;
+            this.rotateIntervalNanos = rotateIntervalMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(rotateIntervalMillis) : Long.MAX_VALUE;
+            this.compressor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, baseName + "-log-compressor");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        @Override
+        public void log(LogMessage message) {
+            byte[] bytes = message.toString().getBytes(StandardCharsets.UTF_8);
+            try {
+                if (region != null && (bytes.length > region.remaining() || rotationDue())) {
+                    closeSegment();
+                }
+                if (region == null) {
+                    openSegment(Math.max(segmentBytes, bytes.length));
+                }
+                region.put(bytes);
+            }
+            catch (IOException ex) {
+                System.err.println("Failed to write to file: " + ex.getMessage());
+            }
+        }
+
+        @Override
+        public void flush() {
+            // bytes are already in the page cache; only time-based rotation is left to do
+            if (region != null && region.position() > 0 && rotationDue()) {
+                try {
+                    closeSegment();
+                }
+                catch (IOException ex) {
+                    System.err.println("Failed to rotate file: " + ex.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public boolean flushesWhenIdle() {
+            return rotateIntervalNanos != Long.MAX_VALUE;
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (region != null) {
+                    closeSegment();
+                }
+            }
+            catch (IOException ex) {
+                System.err.println("Failed to close file: " + ex.getMessage());
+            }
+            compressor.shutdown();
+            try {
+                compressor.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private boolean rotationDue()
+        {
+            return System.nanoTime() - segmentStartNanos >= rotateIntervalNanos;
+        }
+
+        private void openSegment(int size) throws IOException
+        {
+            segmentPath = directory.resolve(String.format("%s-%d-%04d.log", baseName, System.currentTimeMillis(), sequence++));
+            channel = FileChannel.open(segmentPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            region = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            segmentStartNanos = System.nanoTime();
+        }
+
+        // the mapping must not be touched once unmapped, so region is cleared before anything else
+        private void closeSegment() throws IOException
+        {
+            MappedByteBuffer mapped = region;
+            region = null;
+            int used = mapped.position();
+            boolean released;
+            try {
+                mapped.force();
+            }
+            finally {
+                released = unmap(mapped);
+            }
+            try {
+                if (released) {
+                    channel.truncate(used); // drop the unused, zero-filled tail of the mapping
+                }
+            }
+            finally {
+                channel.close();
+                channel = null;
+            }
+            Path closed = segmentPath;
+            compressor.execute(() -> compress(closed, used));
+        }
+
+        private static MethodHandle findInvokeCleaner()
+        {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                return MethodHandles.lookup().findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                        .bindTo(theUnsafe.get(null));
+            }
+            catch (ReflectiveOperationException | RuntimeException ex) {
+                return null;
+            }
+        }
+
+        // true if the mapping is gone; false leaves it to the garbage collector
+        private static boolean unmap(MappedByteBuffer buffer)
+        {
+            if (INVOKE_CLEANER == null) {
+                return false;
+            }
+            try {
+                INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+                return true;
+            }
+            catch (Throwable ex) {
+                System.err.println("Failed to unmap log segment: " + ex.getMessage());
+                return false;
+            }
+        }
+
+        private static void compress(Path segment, int used)
+        {
+            Path target = segment.resolveSibling(segment.getFileName() + ".gz");
+            try (InputStream in = Files.newInputStream(segment);
+                 OutputStream out = new GZIPOutputStream(Files.newOutputStream(target))) {
+                byte[] chunk = new byte[64 * 1024];
+                for (int left = used, read; left > 0 && (read = in.read(chunk, 0, Math.min(chunk.length, left))) > 0; left -= read) {
+                    out.write(chunk, 0, read);
+                }
+            }
+            catch (IOException ex) {
+                System.err.println("Failed to compress " + segment + ": " + ex.getMessage());
+                return;
+            }
+            try {
+                Files.delete(segment);
+            }
+            catch (IOException ex) {
+                System.err.println("Failed to delete " + segment + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    /*
+    How the ring buffer's consumer waits for producers:
+    BLOCKING parks on a condition (lowest CPU, a signal per publish while the worker sleeps),
+    YIELDING spins briefly then yields, BUSY_SPIN burns a core for the lowest latency.
+    Only BLOCKING sleeps for long: it wakes on a publish or on shutdown, and otherwise only
+    on the idle flush tick when a handler needs one.
+    */
+    public enum WaitStrategyType {
+        BLOCKING, YIELDING, BUSY_SPIN
+    }
+
+    interface WaitStrategy
+    {
+        /*
+        Wait until the sequence is claimed or the ring stops; returns the highest claimed sequence.
+        May also return early (below sequence) so the worker can run its idle flush.
+        */
+        long waitFor(long sequence, AtomicLong cursor, BooleanSupplier running);
+
+        void signalAll();
+
+        // idleWakeNanos: how often a sleeping worker wakes for its idle flush, 0 = only when signalled
+        static WaitStrategy of(WaitStrategyType type, long idleWakeNanos)
+        {
+            switch (type) {
+                case BLOCKING:
+                    return new BlockingWaitStrategy(idleWakeNanos);
+                case YIELDING:
+                    return new YieldingWaitStrategy();
+                default:
+                    return new BusySpinWaitStrategy();
+            }
+        }
+    }
+
+    /*
+    The worker announces it is about to sleep (consumerWaiting) before its last look at the
+    cursor and the running flag, and a producer or shutdown reads the flag only after moving
+    them, so one of the two always sees the other and no wake-up is lost: the untimed wait
+    needs no timeout as a safety net. The timed wait is only the idle flush tick.
+    */
+    static class BlockingWaitStrategy implements WaitStrategy
+    {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition published = lock.newCondition();
+        private final long idleWakeNanos;
+        private volatile boolean consumerWaiting;
+
+        BlockingWaitStrategy(long idleWakeNanos)
+        {
+            this.idleWakeNanos = idleWakeNanos;
+        }
+
+        @Override
+        public long waitFor(long sequence, AtomicLong cursor, BooleanSupplier running) {
+            long available = cursor.get();
+            if (available >= sequence) {
+                return available;
+            }
+            lock.lock();
+            try {
+                consumerWaiting = true;
+                if ((available = cursor.get()) < sequence && running.getAsBoolean()) {
+                    if (idleWakeNanos > 0) {
+                        published.awaitNanos(idleWakeNanos);
+                    }
+                    else {
+                        published.await();
+                    }
+                    available = cursor.get();
+                }
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                consumerWaiting = false;
+                lock.unlock();
+            }
+            return available;
+        }
+
+        @Override
+        public void signalAll() {
+            // producers only pay for the lock when the worker is actually asleep
+            if (!consumerWaiting) {
+                return;
+            }
+            lock.lock();
+            try {
+                published.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    static class YieldingWaitStrategy implements WaitStrategy
+    {
+        private static final int SPIN_TRIES = 100;
+        private static final int MAX_TRIES = 10_000;
+
+        @Override
+        public long waitFor(long sequence, AtomicLong cursor, BooleanSupplier running) {
+            int counter = SPIN_TRIES;
+            long available;
+            for (int tries = 0; (available = cursor.get()) < sequence && running.getAsBoolean() && tries < MAX_TRIES; tries++) {
+                if (counter > 0) {
+                    counter--;
+                    Thread.onSpinWait();
+                }
+                else {
+                    Thread.yield();
+                }
+            }
+            return available;
+        }
+
+        @Override
+        public void signalAll() {
+        }
+    }
+
+    static class BusySpinWaitStrategy implements WaitStrategy
+    {
+        private static final int MAX_TRIES = 100_000;
+
+        @Override
+        public long waitFor(long sequence, AtomicLong cursor, BooleanSupplier running) {
+            long available;
+            for (int tries = 0; (available = cursor.get()) < sequence && running.getAsBoolean() && tries < MAX_TRIES; tries++) {
+                Thread.onSpinWait();
+            }
+            return available;
+        }
+
+        @Override
+        public void signalAll() {
+        }
+    }
+
+    /*
+    Disruptor-style multi-producer / single-consumer ring of preallocated, reusable LogMessage events.
+    Producers claim a sequence with one atomic increment of the cursor, fill the event in place and publish
+    it by stamping the slot's lap number; the consumer hands each event to the handlers and
+    then releases the slot. Nothing is allocated per message, and producers never take a lock.
+    When the ring is full producers park until the consumer frees a slot (backpressure, not loss).
+    */
+    static class RingBuffer
+    {
+        private final LogMessage[] entries;
+        private final int mask;
+        private final int indexShift;
+        private final AtomicIntegerArray published; // lap number of the last event published into each slot
+        private final AtomicLong cursor = new AtomicLong(-1); // highest claimed sequence
+        private final AtomicLong consumed = new AtomicLong(-1); // highest sequence released by the consumer
+        private final WaitStrategy waitStrategy;
+        private volatile boolean consumerStopped;
+
+        RingBuffer(int size, WaitStrategy waitStrategy)
+        {
+            if (size <= 0 || Integer.bitCount(size) != 1) {
+                throw new IllegalArgumentException("Ring buffer size must be a power of two.");
+            }
+            this.entries = new LogMessage[size];
+            for (int i = 0; i < size; i++) {
+                entries[i] = new LogMessage(null, null, null);
+            }
+            this.mask = size - 1;
+            this.indexShift = Integer.numberOfTrailingZeros(size);
+            this.published = new AtomicIntegerArray(size);
+            for (int i = 0; i < size; i++) {
+                published.set(i, -1);
+            }
+            this.waitStrategy = waitStrategy;
+        }
+
+        void publish(LogLevel level, String message, Object[] args, LocalDateTime timestamp)
+        {
+            long sequence = claim();
+            if (sequence < 0) {
+                return; // shut down while the ring was full
+            }
+            LogMessage event = entries[(int) sequence & mask];
+            event.level = level;
+            event.message = message;
+            event.args = args;
+            event.timestamp = timestamp;
+            published.lazySet((int) sequence & mask, (int) (sequence >>> indexShift));
+            waitStrategy.signalAll();
+        }
+
+        // -1 if the ring is full and the consumer has exited, so no slot will ever be released
+        private long claim()
+        {
+            long sequence = cursor.incrementAndGet(); // one atomic add, never retried
+            while (sequence - entries.length > consumed.get()) {
+                if (consumerStopped) {
+                    return -1;
+                }
+                LockSupport.parkNanos(1); // ring full: give the consumer the CPU to release the slot
+            }
+            return sequence;
+        }
+
+        private boolean isPublished(long sequence)
+        {
+            return published.get((int) sequence & mask) == (int) (sequence >>> indexShift);
+        }
+
+        /*
+        Consumer loop: processes every published event in order, in batches, until running
+        turns false and the ring is empty. endOfBatch runs after each batch and when idle.
+        */
+        void consume(Consumer<LogMessage> handler, Runnable endOfBatch, BooleanSupplier running)
+        {
+            long next = consumed.get() + 1;
+            while (true) {
+                long available = waitStrategy.waitFor(next, cursor, running);
+                if (available < next) {
+                    if (!running.getAsBoolean() && cursor.get() < next) {
+                        // a producer that claimed after the check above and finds the ring full gives up
+                        consumerStopped = true;
+                        return;
+                    }
+                    endOfBatch.run();
+                    continue;
+                }
+                while (next <= available && isPublished(next)) {
+                    LogMessage event = entries[(int) next & mask];
+                    try {
+                        handler.accept(event);
+                    }
+                    catch (Exception ex) {
+                        System.err.println("Exception ocurred : " + ex.getMessage());
+                    }
+                    // drop the references so the payload can be collected
+                    event.message = null;
+                    event.args = LogMessage.NO_ARGS;
+                    next++;
+                }
+                consumed.lazySet(next - 1);
+                endOfBatch.run();
+            }
+        }
+    }
+
+    /*
+    What a per-handler queue does when its handler falls behind and the queue is full:
+    BLOCK makes the producer wait (nothing lost, a slow sink slows the application),
+    DROP_OLDEST evicts the oldest queued message, DROP_NEWEST discards the incoming one,
+    SAMPLE keeps every message at or above the channel's sample level (those block when full),
+    keeps 1 in sampleRate below it once the queue is half full, and drops them when full.
+    */
+    public enum OverflowPolicy {
+        BLOCK, DROP_OLDEST, DROP_NEWEST, SAMPLE
+    }
+
+    // point-in-time view of one handler channel
+    public static class HandlerMetrics
+    {
+        private final String handler;
+        private final int queueDepth;
+        private final int peakQueueDepth;
+        private final long handled;
+        private final long dropped;
+        private final long averageLatencyNanos;
+        private final long maxLatencyNanos;
+
+        HandlerMetrics(String handler, int queueDepth, int peakQueueDepth, long handled, long dropped,
+                       long averageLatencyNanos, long maxLatencyNanos)
+        {
+            this.handler = handler;
+            this.queueDepth = queueDepth;
+            this.peakQueueDepth = peakQueueDepth;
+            this.handled = handled;
+            this.dropped = dropped;
+            this.averageLatencyNanos = averageLatencyNanos;
+            this.maxLatencyNanos = maxLatencyNanos;
+        }
+
+        public String getHandler() { return handler; }
+        public int getQueueDepth() { return queueDepth; }
+        public int getPeakQueueDepth() { return peakQueueDepth; }
+        public long getHandled() { return handled; }
+        public long getDropped() { return dropped; }
+        // time spent inside the handler's log() per message
+        public long getAverageLatencyNanos() { return averageLatencyNanos; }
+        public long getMaxLatencyNanos() { return maxLatencyNanos; }
+
+        public String toString()
+        {
+            return String.format("%-20s depth=%d peak=%d handled=%d dropped=%d avg=%dns max=%dns",
+                    handler, queueDepth, peakQueueDepth, handled, dropped, averageLatencyNanos, maxLatencyNanos);
+        }
+    }
+
+    /*
+    One handler with its own bounded queue and worker thread, so a slow sink only ever
+    delays itself. Producers enqueue through offer(), which applies the overflow policy.
+    */
+    public static class HandlerChannel
+    {
+        private final LogHandler handler;
+        private final ArrayBlockingQueue<LogMessage> queue;
+        private final int capacity;
+        private final OverflowPolicy overflowPolicy;
+        private final LogLevel sampleLevel;
+        private final int sampleRate;
+        private final AtomicLong sampleCounter = new AtomicLong();
+        private final LongAdder dropped = new LongAdder();
+        private final AtomicInteger peakQueueDepth = new AtomicInteger();
+        // written only by the worker thread
+        private volatile long handled;
+        private volatile long latencyNanos;
+        private volatile long maxLatencyNanos;
+        private Thread workerThread;
+        private volatile BooleanSupplier running = () -> true;
+
+        public HandlerChannel(LogHandler handler, int capacity, OverflowPolicy overflowPolicy)
+        {
+            this(handler, capacity, overflowPolicy, LogLevel.WARNING, 10);
+        }
+
+        public HandlerChannel(LogHandler handler, int capacity, OverflowPolicy overflowPolicy, LogLevel sampleLevel, int sampleRate)
+        {
+            if (capacity <= 0 || sampleRate <= 0) {
+                throw new IllegalArgumentException("Capacity and sample rate must be positive.");
+            }
+            this.handler = handler;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.capacity = capacity;
+            this.overflowPolicy = overflowPolicy;
+            this.sampleLevel = sampleLevel;
+            this.sampleRate = sampleRate;
+        }
+
+        void start(BooleanSupplier running)
+        {
+            this.running = running;
+            workerThread = new Thread(() -> processLogs(queue, this::handle, handler::flush, running),
+                    "log-" + handler.getClass().getSimpleName());
+            workerThread.start();
+        }
+
+        void join() throws InterruptedException
+        {
+            workerThread.join();
+        }
+
+        void offer(LogMessage message) throws InterruptedException
+        {
+            if (!running.getAsBoolean()) {
+                dropped.increment(); // the worker may already have drained and exited
+                return;
+            }
+            switch (overflowPolicy) {
+                case BLOCK:
+                    put(message);
+                    break;
+                case DROP_NEWEST:
+                    if (!queue.offer(message)) {
+                        dropped.increment();
+                    }
+                    break;
+                case DROP_OLDEST:
+                    while (!queue.offer(message)) {
+                        if (queue.poll() != null) {
+                            dropped.increment();
+                        }
+                    }
+                    break;
+                case SAMPLE:
+                    if (message.level.compareTo(sampleLevel) >= 0) {
+                        put(message);
+                    }
+                    else if (queue.size() >= capacity / 2 && sampleCounter.incrementAndGet() % sampleRate != 0
+                            || !queue.offer(message)) {
+                        dropped.increment();
+                    }
+                    break;
+            }
+            int depth = queue.size();
+            int peak;
+            while (depth > (peak = peakQueueDepth.get()) && !peakQueueDepth.compareAndSet(peak, depth)) {
+                // retry until our depth is recorded or someone saw a deeper queue
+            }
+        }
+
+        // waits while the queue is full, but not past shutdown: nobody would take the message then
+        private void put(LogMessage message) throws InterruptedException
+        {
+            while (!queue.offer(message, LogManager.IDLE_FLUSH_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (!running.getAsBoolean()) {
+                    dropped.increment();
+                    return;
+                }
+            }
+        }
+
+        private void handle(LogMessage message)
+        {
+            long begin = System.nanoTime();
+            handler.log(message);
+            long elapsed = System.nanoTime() - begin;
+            handled++;
+            latencyNanos += elapsed;
+            if (elapsed > maxLatencyNanos) {
+                maxLatencyNanos = elapsed;
+            }
+        }
+
+        LogHandler handler()
+        {
+            return handler;
+        }
+
+        public HandlerMetrics metrics()
+        {
+            long count = handled;
+            return new HandlerMetrics(handler.getClass().getSimpleName(), queue.size(), peakQueueDepth.get(), count,
+                    dropped.sum(), count == 0 ? 0 : latencyNanos / count, maxLatencyNanos);
+        }
+    }
+
+    /*
+    Worker loop shared by the single queue and the per-handler channels: waits for a message
+    (or IDLE_FLUSH_MILLIS, so INTERVAL handlers still flush when idle), takes whatever else has
+    queued up (at most MAX_BATCH) and hands it over as one batch. Runs until stopped and drained.
+    */
+    static void processLogs(BlockingQueue<LogMessage> queue, Consumer<LogMessage> dispatch, Runnable endOfBatch, BooleanSupplier running)
+    {
+        List<LogMessage> batch = new ArrayList<>(LogManager.MAX_BATCH);
+        while(!queue.isEmpty() || running.getAsBoolean())
+        {
+            try {
+                // No CPU wastage: It only wakes up when a log is available (or to flush when idle).
+                LogMessage first = queue.poll(LogManager.IDLE_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, LogManager.MAX_BATCH - 1);
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            for (LogMessage message : batch) {
+                try {
+                    dispatch.accept(message);
+                }
+                catch (Exception ex)
+                {
+                    System.err.println("Exception ocurred : "+ ex.getMessage());
+                }
+            }
+            batch.clear();
+            try {
+                endOfBatch.run();
+            }
+            catch (Exception ex) {
+                System.err.println("Exception ocurred : " + ex.getMessage());
+            }
+        }
+    }
+
+    public static class LogManager
+    {
+        // bit i set = LogLevel with ordinal i is enabled; one volatile read decides whether a call does any work
+        private final AtomicInteger levelMask = new AtomicInteger();
+        private Set<LogHandler> logHandlers;
+        private Thread workerThread;
+        private BlockingQueue<LogMessage> blockingQueue;
+        private RingBuffer ringBuffer;
+        private List<HandlerChannel> channels;
+        private volatile boolean running = true;
+        private boolean closed;
+        // upper bound on messages handed to the handlers between two flushes
+        private static final int MAX_BATCH = 1024;
+        // how long an idle worker waits before giving INTERVAL handlers a chance to flush
+        private static final long IDLE_FLUSH_MILLIS = 10;
+        public LogManager(Set<LogLevel> enabledLevels, Set<LogHandler> logHandlers)
+        {
+            setEnabledLevels(enabledLevels);
+            this.logHandlers = logHandlers;
+            this.blockingQueue = new LinkedBlockingQueue<>();
+            workerThread = new Thread(() -> processLogs(blockingQueue, this::dispatch, this::flushHandlers, () -> running));
+            workerThread.start();
+
+            Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+        }
+
+        /*
+        Ring buffer mode: log() fills a preallocated event instead of allocating a LogMessage and
+        a queue node, so steady-state logging allocates nothing and producers never lock.
+        Handlers see a reused LogMessage and must not keep it after log() returns.
+        */
+        public LogManager(Set<LogLevel> enabledLevels, Set<LogHandler> logHandlers, int ringBufferSize, WaitStrategyType waitStrategy)
+        {
+            setEnabledLevels(enabledLevels);
+            this.logHandlers = logHandlers;
+            boolean idleFlush = logHandlers.stream().anyMatch(LogHandler::flushesWhenIdle);
+            this.ringBuffer = new RingBuffer(ringBufferSize,
+                    WaitStrategy.of(waitStrategy, idleFlush ? TimeUnit.MILLISECONDS.toNanos(IDLE_FLUSH_MILLIS) : 0));
+            workerThread = new Thread(() -> ringBuffer.consume(this::dispatch, this::flushHandlers, () -> running));
+            workerThread.start();
+
+            Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+        }
+
+        /*
+        Per-handler mode: every handler gets its own bounded queue and worker thread, so a slow
+        sink cannot stall the others and memory stays bounded under overload.
+        */
+        public LogManager(Set<LogLevel> enabledLevels, List<HandlerChannel> channels)
+        {
+            setEnabledLevels(enabledLevels);
+            this.channels = List.copyOf(channels);
+            Set<LogHandler> handlers = new LinkedHashSet<>();
+            for (HandlerChannel channel : this.channels) {
+                handlers.add(channel.handler());
+                channel.start(() -> running);
+            }
+            this.logHandlers = handlers;
+
+            Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+        }
+
+        // queue depth, drops and handler latency per channel; empty unless in per-handler mode
+        public List<HandlerMetrics> metrics()
+        {
+            List<HandlerMetrics> metrics = new ArrayList<>();
+            if (channels != null) {
+                for (HandlerChannel channel : channels) {
+                    metrics.add(channel.metrics());
+                }
+            }
+            return metrics;
+        }
+
+        private void dispatch(LogMessage message)
+        {
+            for (LogHandler logHandler : logHandlers) {
+                logHandler.log(message);
+            }
+        }
+
+        private void flushHandlers()
+        {
+            for (LogHandler logHandler : logHandlers) {
+                try {
+                    logHandler.flush();
+                }
+                catch (Exception ex) {
+                    System.err.println("Exception ocurred : " + ex.getMessage());
+                }
+            }
+        }
+
+        // stops accepting work, lets the worker drain everything queued, then closes the handlers
+        public synchronized void shutdown()
+        {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            running = false;
+            // no interrupt: it would close a FileChannel in the middle of a write
+            if (ringBuffer != null) {
+                ringBuffer.waitStrategy.signalAll();
+            }
+            try {
+                if (channels != null) {
+                    for (HandlerChannel channel : channels) {
+                        channel.join();
+                    }
+                }
+                else {
+                    workerThread.join();
+                }
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            for (LogHandler logHandler : logHandlers) {
+                logHandler.close();
+            }
+        }
+
+        public boolean isEnabled(LogLevel level)
+        {
+            return (levelMask.get() & (1 << level.ordinal())) != 0;
+        }
+
+        // takes effect for the next log() call; the workers keep running
+        public void setEnabledLevels(Set<LogLevel> enabledLevels)
+        {
+            int mask = 0;
+            for (LogLevel level : enabledLevels) {
+                mask |= 1 << level.ordinal();
+            }
+            levelMask.set(mask);
+        }
+
+        // lock-free, so toggling a level never waits for a shutdown() in progress
+        public void enableLevel(LogLevel level)
+        {
+            int bit = 1 << level.ordinal();
+            levelMask.getAndUpdate(mask -> mask | bit);
+        }
+
+        public void disableLevel(LogLevel level)
+        {
+            int bit = 1 << level.ordinal();
+            levelMask.getAndUpdate(mask -> mask & ~bit);
+        }
+
+        public Set<LogLevel> getEnabledLevels()
+        {
+            Set<LogLevel> levels = EnumSet.noneOf(LogLevel.class);
+            for (LogLevel level : LogLevel.values()) {
+                if (isEnabled(level)) {
+                    levels.add(level);
+                }
+            }
+            return levels;
+        }
+
+        /*
+        Convenience overloads stamped with the current time. A disabled level returns before the
+        timestamp is taken or the message is built: use a template with arguments or a supplier
+        instead of string concatenation so the caller pays nothing either. The one and two argument
+        forms avoid the varargs array.
+        */
+        public void log(LogLevel level, String message)
+        {
+            if (isEnabled(level)) {
+                log(LocalDateTime.now(), level, message, LogMessage.NO_ARGS);
+            }
+        }
+
+        public void log(LogLevel level, String template, Object arg)
+        {
+            if (isEnabled(level)) {
+                log(LocalDateTime.now(), level, template, new Object[] {arg});
+            }
+        }
+
+        public void log(LogLevel level, String template, Object arg1, Object arg2)
+        {
+            if (isEnabled(level)) {
+                log(LocalDateTime.now(), level, template, new Object[] {arg1, arg2});
+            }
+        }
+
+        public void log(LogLevel level, String template, Object... args)
+        {
+            if (isEnabled(level)) {
+                log(LocalDateTime.now(), level, template, args);
+            }
+        }
+
+        public void log(LogLevel level, Supplier<String> messageSupplier)
+        {
+            if (isEnabled(level)) {
+                log(LocalDateTime.now(), level, messageSupplier.get(), LogMessage.NO_ARGS);
+            }
+        }
+
+        public void log(LocalDateTime dateTime, LogLevel level, String message)
+        {
+            log(dateTime, level, message, LogMessage.NO_ARGS);
+        }
+
+        // the template's {} placeholders are filled in by the handler (or the binary log decoder), not here
+        public void log(LocalDateTime dateTime, LogLevel level, String template, Object... args)
+        {
+            if(!isEnabled(level)) return;
+
+            if (ringBuffer != null) {
+                if (running) { // nobody would free ring slots after shutdown
+                    ringBuffer.publish(level, template, args, dateTime);
+                }
+                return;
+            }
+            LogMessage message = new LogMessage(level, template, args, dateTime);
+            if (channels != null) {
+                try {
+                    for (HandlerChannel channel : channels) {
+                        channel.offer(message);
+                    }
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            this.blockingQueue.offer(message);
+        }
+    }
+
+    // counts messages without doing I/O, so the benchmark measures the hand-off alone
+    static class CountingLogHandler implements LogHandler
+    {
+        private final AtomicLong count = new AtomicLong();
+
+        @Override
+        public void log(LogMessage message) {
+            count.lazySet(count.get() + 1); // single consumer thread
+        }
+    }
+
+    private static long allocatedBytes()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    // producers log a fixed message as fast as they can; reports throughput and producer-side allocation
+    static void benchmark(String name, Function<Set<LogHandler>,LogManager> factory, int producers, int messagesPerProducer)
+            throws InterruptedException
+    {
+        CountingLogHandler handler = new CountingLogHandler();
+        LogManager logManager = factory.apply(Set.of(handler));
+        LocalDateTime timestamp = LocalDateTime.now();
+        AtomicLong allocated = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                long before = allocatedBytes();
+                for (int i = 0; i < messagesPerProducer; i++) {
+                    logManager.log(timestamp, LogLevel.INFO, "benchmark message");
+                }
+                allocated.addAndGet(allocatedBytes() - before);
+            });
+            threads[p].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long total = (long) producers * messagesPerProducer;
+        while (handler.count.get() < total) {
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - begin;
+        logManager.shutdown();
+        System.out.printf("%-22s producers=%d  %6.1f M msg/s  %5.1f bytes/msg allocated%n",
+                name, producers, total * 1e3 / elapsed, (double) allocated.get() / total);
+    }
+
+    // writes the same messages through each flush policy and checks every line landed in the file
+    static void fileBenchmark(int messages) throws IOException
+    {
+        Set<LogLevel> all = Set.of(LogLevel.values());
+        LocalDateTime timestamp = LocalDateTime.now();
+        for (FlushPolicy flushPolicy : FlushPolicy.values()) {
+            Path file = Files.createTempFile("log-" + flushPolicy, ".log");
+            LogManager logManager = new LogManager(all, Set.of(new FileLogHandler(file.toString(), flushPolicy, 100)));
+            long begin = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                logManager.log(timestamp, LogLevel.INFO, "file message " + i);
+            }
+            logManager.shutdown();
+            long elapsed = System.nanoTime() - begin;
+            long lines;
+            try (Stream<String> stream = Files.lines(file)) {
+                lines = stream.filter(line -> line.startsWith("[ INFO ]")).count();
+            }
+            System.out.printf("FileLogHandler %-9s %6.0f K msg/s  lines=%d/%d%n", flushPolicy, messages * 1e6 / elapsed, lines, messages);
+            Files.delete(file);
+        }
+    }
+
+    // rolls through many small segments and checks the gzipped output holds every line
+    static void mappedFileDemo(int messages) throws IOException
+    {
+        Path directory = Files.createTempDirectory("mapped-logs");
+        LogManager logManager = new LogManager(Set.of(LogLevel.values()),
+                Set.of(new MappedFileLogHandler(directory.toString(), "app", 256 * 1024, 60_000)));
+        LocalDateTime timestamp = LocalDateTime.now();
+        long begin = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            logManager.log(timestamp, LogLevel.INFO, "mapped message " + i);
+        }
+        logManager.shutdown();
+        long elapsed = System.nanoTime() - begin;
+
+        long lines = 0;
+        int segments = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                segments++;
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+                    lines += reader.lines().filter(line -> line.startsWith("[ INFO ]")).count();
+                }
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+        System.out.printf("MappedFileLogHandler %6.0f K msg/s  gzipped segments=%d lines=%d/%d%n",
+                messages * 1e6 / elapsed, segments, lines, messages);
+    }
+
+    // same templated messages as text and as binary: worker CPU per message and bytes on disk
+    static void binaryBenchmark(int messages) throws IOException
+    {
+        Set<LogLevel> all = Set.of(LogLevel.values());
+        LocalDateTime timestamp = LocalDateTime.now();
+        for (boolean binary : new boolean[] {false, true}) {
+            Path file = Files.createTempFile(binary ? "log-binary" : "log-text", ".log");
+            FileLogHandler handler = binary ? new BinaryFileLogHandler(file.toString()) : new FileLogHandler(file.toString());
+            LogMessage message = new LogMessage(LogLevel.INFO, "user {} logged in from {} in {} ms", LogMessage.NO_ARGS, timestamp);
+            long begin = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                message.args = new Object[] {i, "10.0.0.1", 42L};
+                handler.log(message);
+            }
+            handler.close();
+            long elapsed = System.nanoTime() - begin;
+            System.out.printf("%-20s %5.0f ns/msg  %5.1f bytes/msg%n", handler.getClass().getSimpleName(),
+                    (double) elapsed / messages, (double) Files.size(file) / messages);
+            if (binary) {
+                StringWriter decoded = new StringWriter();
+                try (InputStream in = Files.newInputStream(file)) {
+                    new BinaryLogDecoder(in).decode(decoded, true);
+                }
+                System.out.println("decoded: " + decoded.toString().lines().findFirst().orElse(""));
+            }
+            Files.delete(file);
+        }
+
+        // more distinct templates than the dictionary holds, mixed with concatenated messages: all must round-trip
+        Path file = Files.createTempFile("log-binary", ".log");
+        BinaryFileLogHandler handler = new BinaryFileLogHandler(file.toString());
+        StringBuilder expected = new StringBuilder();
+        int distinct = 3 * BinaryFileLogHandler.MAX_TEMPLATES;
+        for (int i = 0; i < distinct; i++) {
+            LogMessage message = i % 2 == 0
+                    ? new LogMessage(LogLevel.INFO, "job " + i + " took {} ms", new Object[] {i}, timestamp)
+                    : new LogMessage(LogLevel.WARNING, "job " + i + " failed", LogMessage.NO_ARGS, timestamp);
+            handler.log(message);
+            expected.append(message);
+        }
+        handler.close();
+        StringWriter decoded = new StringWriter();
+        try (InputStream in = Files.newInputStream(file)) {
+            new BinaryLogDecoder(in).decode(decoded, false);
+        }
+        if (!decoded.toString().equals(expected.toString())) {
+            throw new IllegalStateException("Binary log did not round-trip past the template dictionary limit");
+        }
+        System.out.printf("%,d distinct messages round-trip, %d templates kept%n", distinct, handler.templateIds.size());
+        Files.delete(file);
+    }
+
+    // stands in for a slow sink (remote collector, congested disk)
+    static class SlowLogHandler implements LogHandler
+    {
+        private final long delayNanos;
+
+        SlowLogHandler(long delayNanos)
+        {
+            this.delayNanos = delayNanos;
+        }
+
+        @Override
+        public void log(LogMessage message) {
+            LockSupport.parkNanos(delayNanos);
+        }
+    }
+
+    // one fast and one slow handler: shared worker vs per-handler channels under each overflow policy
+    static void channelDemo(int messages) throws InterruptedException
+    {
+        Set<LogLevel> all = Set.of(LogLevel.values());
+        LocalDateTime timestamp = LocalDateTime.now();
+        LogLevel[] levels = LogLevel.values();
+
+        CountingLogHandler fast = new CountingLogHandler();
+        LogManager shared = new LogManager(all, new LinkedHashSet<>(List.of(fast, new SlowLogHandler(100_000))));
+        long begin = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            shared.log(timestamp, levels[i % levels.length], "message {}", i);
+        }
+        while (fast.count.get() < messages) {
+            Thread.sleep(1);
+        }
+        System.out.printf("shared worker          fast handler done after %4d ms%n", (System.nanoTime() - begin) / 1_000_000);
+        shared.shutdown();
+
+        for (OverflowPolicy policy : OverflowPolicy.values()) {
+            fast = new CountingLogHandler();
+            LogManager perHandler = new LogManager(all, List.of(
+                    new HandlerChannel(fast, 1024, OverflowPolicy.BLOCK),
+                    new HandlerChannel(new SlowLogHandler(100_000), 256, policy)));
+            begin = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                perHandler.log(timestamp, levels[i % levels.length], "message {}", i);
+            }
+            while (fast.count.get() < messages) {
+                Thread.sleep(1);
+            }
+            System.out.printf("channels %-12s  fast handler done after %4d ms%n", policy, (System.nanoTime() - begin) / 1_000_000);
+            for (HandlerMetrics metrics : perHandler.metrics()) {
+                System.out.println("    " + metrics);
+            }
+            perHandler.shutdown();
+        }
+    }
+
+    private static volatile long sink;
+
+    // cost of a call at a disabled level for each overload, against the old Set.contains check with eager concatenation
+    static void levelFilterBenchmark(int iterations)
+    {
+        LogManager logManager = new LogManager(EnumSet.of(LogLevel.ERROR, LogLevel.FATAL), Set.of(new CountingLogHandler()), 1 << 10, WaitStrategyType.BLOCKING);
+        Set<LogLevel> genericSet = new HashSet<>(List.of(LogLevel.ERROR, LogLevel.FATAL));
+        for (int round = 0; round < 3; round++) { // the first rounds are JIT warm-up
+            long begin = System.nanoTime();
+            long checks = 0;
+            for (int i = 0; i < iterations; i++) {
+                String message = "request " + i + " served"; // what callers used to build up front
+                if (genericSet.contains(LogLevel.DEBUG)) {
+                    checks += message.length();
+                }
+                checks += message.length() & 1;
+            }
+            long eager = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                logManager.log(LogLevel.DEBUG, "request {} served", i);
+            }
+            long template = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                int request = i;
+                logManager.log(LogLevel.DEBUG, () -> "request " + request + " served");
+            }
+            long supplier = System.nanoTime() - begin;
+
+            begin = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                if (logManager.isEnabled(LogLevel.DEBUG)) {
+                    checks++;
+                }
+            }
+            long guard = System.nanoTime() - begin;
+            sink = checks;
+            if (round == 2) {
+                System.out.printf("disabled level: eager concat + Set %.1f ns, template %.1f ns, supplier %.1f ns, isEnabled %.1f ns%n",
+                        (double) eager / iterations, (double) template / iterations,
+                        (double) supplier / iterations, (double) guard / iterations);
+            }
+        }
+
+        // reconfigure while running: DEBUG goes through once enabled
+        CountingLogHandler handler = new CountingLogHandler();
+        LogManager live = new LogManager(EnumSet.of(LogLevel.ERROR), Set.of(handler));
+        live.log(LogLevel.DEBUG, "dropped");
+        live.enableLevel(LogLevel.DEBUG);
+        live.log(LogLevel.DEBUG, "kept {}", 1);
+        live.shutdown();
+        logManager.shutdown();
+        System.out.println("after enableLevel(DEBUG): handled=" + handler.count.get() + " enabled=" + live.getEnabledLevels());
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        // decode [--json] <file>...: render binary logs as text or JSON lines
+        if (args.length > 0 && args[0].equals("decode")) {
+            boolean json = args.length > 1 && args[1].equals("--json");
+            Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+            for (int i = json ? 2 : 1; i < args.length; i++) {
+                try (InputStream in = Files.newInputStream(Path.of(args[i]))) {
+                    new BinaryLogDecoder(in).decode(out, json);
+                }
+            }
+            return;
+        }
+
+        // we need to support multiple logging levels (INFO, WARNING, ERROR, FATAL, DEBUG)
+        // should be configurable to include/exclude logging levels
+        // should have multiple output sources
+        // should be thread safe
+        LoggingFramework.LogManager logManager = new LoggingFramework.LogManager(Set.of(LogLevel.values()), Set.of(new ConsoleLogHandler(), new FileLogHandler("")));
+        logManager.log(LocalDateTime.now(),LogLevel.INFO,"First log");
+        logManager.shutdown();
+
+        fileBenchmark(200_000);
+        mappedFileDemo(200_000);
+        binaryBenchmark(500_000);
+        channelDemo(5_000);
+        levelFilterBenchmark(20_000_000);
+
+        // queue vs ring buffer hand-off
+        Set<LogLevel> all = Set.of(LogLevel.values());
+        for (int producers : new int[] {1, 2, 4}) {
+            benchmark("LinkedBlockingQueue", handlers -> new LogManager(all, handlers), producers, 1_000_000);
+            for (WaitStrategyType waitStrategy : WaitStrategyType.values()) {
+                benchmark("RingBuffer " + waitStrategy, handlers -> new LogManager(all, handlers, 1 << 14, waitStrategy), producers, 1_000_000);
+            }
+        }
     }
 }
@@ -1,70 +1,1185 @@
 package cache.lru;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongFunction;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongBiFunction;
 
-public class RateLimiter {
+public class RateLimiter implements AutoCloseable {
 
-    private Map<String,Bucket> userVsBucketMap;
-    private int maxRequests;
-    private int timeWindow;
-    private int maxCredits;
-    private final ScheduledExecutorService cleanupService = Executors.newScheduledThreadPool(1);
+    /*
+    FIXED_WINDOW is the original behaviour: maxRequests per window plus maxCredits extra.
+    Up to twice the limit can get through around a window boundary.
+    GCRA and TOKEN_BUCKET admit a burst of maxRequests + maxCredits and then refill continuously
+    at maxRequests per window (the two are equivalent; GCRA stores less).
+    SLIDING_WINDOW_LOG admits exactly maxRequests in any window-long interval.
+    SLIDING_WINDOW_COUNTER approximates the log with two counters, weighting the previous
+    window by how much of it still overlaps the sliding window.
+    The sliding windows enforce maxRequests alone; they have no burst credits.
+    */
+    public enum Algorithm {
+        FIXED_WINDOW, GCRA, TOKEN_BUCKET, SLIDING_WINDOW_LOG, SLIDING_WINDOW_COUNTER
+    }
+
+    /*
+    Per-key admission state. Implementations are thread safe and take the current time from
+    the limiter so a test can drive the clock. Approximate memory per key (64-bit JVM with
+    compressed oops) is given on each implementation, on top of ~32 bytes for the
+    ConcurrentHashMap node, ~24 for the key's expiry wheel entry and the key String itself.
+    */
+    public interface Strategy
+    {
+        // all or nothing: true if every permit was granted
+        boolean tryAcquire(String userId, int permits, long now);
+
+        default boolean tryAcquire(String userId, long now)
+        {
+            return tryAcquire(userId, 1, now);
+        }
+
+        // grants as many of the requests (one permit each) as fit right now; the GCRA strategies do it in one atomic update
+        default int acquireUpTo(String userId, int requests, long now)
+        {
+            int granted = 0;
+            while (granted < requests && tryAcquire(userId, 1, now)) {
+                granted++;
+            }
+            return granted;
+        }
+
+        /*
+        Books the permits at the earliest time they fit and returns how many nanos from now that
+        is (0 = go ahead), or -1 without booking anything if that is more than maxWaitNanos away.
+        The window strategies also return -1 for a booking they cannot place at all: more permits
+        than one window allows, or (sliding counter) further out than the next window.
+        Leased permits (DistributedStrategy) cannot be booked ahead: they are granted now or -1.
+        */
+        long reserve(String userId, int permits, long maxWaitNanos, long now);
+
+        // drops keys whose state is indistinguishable from a key never seen
+        void evictStale(long now);
+
+        int size();
+    }
+
+    // how often per window the cleanup thread expires keys; smaller slices mean shorter passes
+    static final int EXPIRY_TICKS_PER_WINDOW = 64;
+
+    private final Strategy strategy;
+    private final LongSupplier ticker;
+    private final ScheduledExecutorService cleanupService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rate-limiter-cleanup");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public RateLimiter(int maxRequests, int timeWindow, int maxCredits)
     {
-        this.maxRequests = maxRequests;
-        this.timeWindow = timeWindow;
-        this.maxCredits = maxCredits;
-        this.userVsBucketMap = new ConcurrentHashMap<>();
+        this(maxRequests, timeWindow, maxCredits, Algorithm.FIXED_WINDOW);
+    }
+
+    public RateLimiter(int maxRequests, int timeWindow, int maxCredits, Algorithm algorithm)
+    {
+        this(maxRequests, timeWindow, maxCredits, algorithm, System::nanoTime);
+    }
+
+    // ticker returns nanoseconds, like System.nanoTime
+    public RateLimiter(int maxRequests, int timeWindow, int maxCredits, Algorithm algorithm, LongSupplier ticker)
+    {
+        this(createStrategy(maxRequests, TimeUnit.SECONDS.toNanos(timeWindow), maxCredits, algorithm), timeWindow, ticker);
+    }
+
+    // for strategies that need more configuration than the enum carries, e.g. CompactGcraStrategy
+    public RateLimiter(Strategy strategy, int timeWindow, LongSupplier ticker)
+    {
+        if (timeWindow <= 0) {
+            throw new IllegalArgumentException("Window must be positive.");
+        }
+        this.strategy = strategy;
+        this.ticker = ticker;
+
+        // separate thread expires stale keys a slice at a time
+        long tickNanos = TimeUnit.SECONDS.toNanos(timeWindow) / EXPIRY_TICKS_PER_WINDOW;
+        this.cleanupService.scheduleAtFixedRate(this::cleanUpBuckets , tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
 
-        // separate thread to cleanup stale data
-        this.cleanupService.scheduleAtFixedRate(this::cleanUpBuckets , timeWindow, timeWindow, TimeUnit.SECONDS);
+    private static Strategy createStrategy(int maxRequests, long windowNanos, int maxCredits, Algorithm algorithm)
+    {
+        if (maxRequests <= 0 || windowNanos <= 0 || maxCredits < 0) {
+            throw new IllegalArgumentException("Requests and window must be positive, credits non-negative.");
+        }
+        switch (algorithm) {
+            case GCRA:
+                return new GcraStrategy(maxRequests, windowNanos, maxCredits);
+            case TOKEN_BUCKET:
+                return new TokenBucketStrategy(maxRequests, windowNanos, maxCredits);
+            case SLIDING_WINDOW_LOG:
+                return new SlidingWindowLogStrategy(maxRequests, windowNanos);
+            case SLIDING_WINDOW_COUNTER:
+                return new SlidingWindowCounterStrategy(maxRequests, windowNanos);
+            default:
+                return new FixedWindowStrategy(maxRequests, windowNanos, maxCredits);
+        }
     }
 
     private void cleanUpBuckets()
     {
-        long currTime = System.currentTimeMillis();
-        this.userVsBucketMap.entrySet().removeIf(entry -> entry.getValue().endTime < currTime);
+        try {
+            strategy.evictStale(ticker.getAsLong());
+        }
+        catch (RuntimeException ex) {
+            // an exception would cancel the periodic task for good
+            System.err.println("Failed to clean up rate limiter state: " + ex.getMessage());
+        }
+    }
+
+    // true means the request is rejected
+    public boolean rateLimit(String userId)
+    {
+        return !strategy.tryAcquire(userId, 1, ticker.getAsLong());
     }
 
-    public synchronized boolean rateLimit(String userId)
+    // true means admitted; a request costing several units takes them all or none
+    public boolean tryAcquire(String userId, int permits)
     {
-        // check for user bucket
-        long currTime = System.currentTimeMillis();
-        if(!userVsBucketMap.containsKey(userId))
+        checkPermits(permits);
+        return strategy.tryAcquire(userId, permits, ticker.getAsLong());
+    }
+
+    /*
+    One permit per element, decided in one pass at one timestamp: the batch is grouped by key so
+    each distinct key costs a single strategy call, however often it repeats. When a key cannot
+    take all of its requests, its earliest occurrences are the ones admitted.
+    Returns admitted flags in iteration order.
+    */
+    public boolean[] tryAcquireAll(Collection<String> userIds)
+    {
+        long now = ticker.getAsLong();
+        Map<String,Integer> remaining = new HashMap<>();
+        for (String userId : userIds) {
+            remaining.merge(userId, 1, Integer::sum);
+        }
+        for (Map.Entry<String,Integer> entry : remaining.entrySet()) {
+            entry.setValue(strategy.acquireUpTo(entry.getKey(), entry.getValue(), now));
+        }
+        boolean[] admitted = new boolean[userIds.size()];
+        int i = 0;
+        for (String userId : userIds) {
+            int granted = remaining.get(userId);
+            admitted[i++] = granted > 0;
+            if (granted > 0) {
+                remaining.put(userId, granted - 1);
+            }
+        }
+        return admitted;
+    }
+
+    // books the permits and returns the nanos to wait before using them (0 = now); -1 only when the algorithm cannot place them
+    // (in distributed mode, when the local lease and the store cannot cover them right now)
+    public long reserve(String userId, int permits)
+    {
+        return reserve(userId, permits, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    // as reserve, but returns -1 and books nothing when the wait would exceed maxWait
+    public long reserve(String userId, int permits, long maxWait, TimeUnit unit)
+    {
+        checkPermits(permits);
+        return strategy.reserve(userId, permits, unit.toNanos(maxWait), ticker.getAsLong());
+    }
+
+    private static void checkPermits(int permits)
+    {
+        if (permits <= 0) {
+            throw new IllegalArgumentException("Permits must be positive.");
+        }
+    }
+
+    public int size()
+    {
+        return strategy.size();
+    }
+
+    // stops the cleanup thread and waits for a running pass to finish; checks keep working, nothing expires any more
+    @Override
+    public void close()
+    {
+        cleanupService.shutdown();
+        try {
+            if (!cleanupService.awaitTermination(1, TimeUnit.SECONDS)) {
+                cleanupService.shutdownNow();
+            }
+        }
+        catch (InterruptedException ex) {
+            cleanupService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+    Timing wheel of keys bucketed by when their state goes stale, so expiry only visits keys
+    whose deadline has come: cost follows the number of expiring keys, not the map size.
+    Every live key sits in exactly one bucket. When its bucket comes round, the key is removed
+    if its state is stale; otherwise (it was used since) it is filed again under its new
+    deadline, so an active key is revisited at most once per deadline it passes.
+    Deadlines beyond the wheel's span go to the furthest bucket and are refiled when reached.
+    */
+    static class ExpiryWheel
+    {
+        static final long REMOVED = Long.MIN_VALUE;
+        private static final int BUCKETS = 4 * EXPIRY_TICKS_PER_WINDOW; // spans four windows
+
+        private final ConcurrentLinkedQueue<String>[] buckets;
+        private final long tickNanos;
+        private volatile long currentTick = Long.MIN_VALUE; // last tick processed; unset until the first advance
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        ExpiryWheel(long tickNanos)
         {
-            userVsBucketMap.put(userId, new Bucket(currTime, currTime+(timeWindow * 1000L), 1, maxCredits));
-            return false;
+            this.tickNanos = Math.max(1, tickNanos);
+            this.buckets = new ConcurrentLinkedQueue[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new ConcurrentLinkedQueue<>();
+            }
         }
 
-        // if present, validate if its within window
-        Bucket bucket = userVsBucketMap.get(userId);
-        if(currTime < bucket.endTime)
+        void schedule(String userId, long deadline)
         {
-            if(bucket.getCurrentCount() < maxRequests)
+            long tick = Math.floorDiv(deadline, tickNanos) + 1; // fire once the deadline has passed
+            long current = currentTick;
+            if (current != Long.MIN_VALUE) {
+                tick = Math.min(Math.max(tick, current + 1), current + BUCKETS);
+            }
+            buckets[(int) (tick & (BUCKETS - 1))].add(userId);
+        }
+
+        // expirer returns REMOVED, or the key's new deadline if it is still live
+        synchronized void advance(long now, ToLongBiFunction<String,Long> expirer)
+        {
+            long nowTick = Math.floorDiv(now, tickNanos);
+            long from = currentTick == Long.MIN_VALUE ? nowTick - BUCKETS + 1 : currentTick + 1;
+            from = Math.max(from, nowTick - BUCKETS + 1); // after a long pause, one lap covers every bucket
+            currentTick = nowTick;
+            List<String> due = new ArrayList<>();
+            for (long tick = from; tick <= nowTick; tick++) {
+                ConcurrentLinkedQueue<String> bucket = buckets[(int) (tick & (BUCKETS - 1))];
+                for (String userId; (userId = bucket.poll()) != null; ) {
+                    due.add(userId);
+                }
+            }
+            for (String userId : due) {
+                long deadline = expirer.applyAsLong(userId, now);
+                if (deadline != REMOVED) {
+                    schedule(userId, deadline);
+                }
+            }
+        }
+    }
+
+    /*
+    Map-backed strategies: one state object per key, created on first use and filed in an
+    ExpiryWheel. staleAt says when the state becomes indistinguishable from a new key's.
+    A request racing with its key's removal can update the orphaned state; that costs at most
+    one extra admission, and only for a key that was already back to a full allowance.
+    */
+    abstract static class KeyedStrategy<S> implements Strategy
+    {
+        final Map<String,S> states = new ConcurrentHashMap<>();
+        private final ExpiryWheel expiryWheel;
+
+        KeyedStrategy(long windowNanos)
+        {
+            this.expiryWheel = new ExpiryWheel(windowNanos / EXPIRY_TICKS_PER_WINDOW);
+        }
+
+        S state(String userId, long now, LongFunction<S> factory)
+        {
+            S state = states.get(userId);
+            if (state == null) {
+                state = states.computeIfAbsent(userId, key -> {
+                    scheduleExpiry(key, now);
+                    return factory.apply(now);
+                });
+            }
+            return state;
+        }
+
+        // a new key is filed under its creation time; by the time its bucket comes round it has been used and gets refiled
+        void scheduleExpiry(String userId, long now)
+        {
+            expiryWheel.schedule(userId, now);
+        }
+
+        // when the state stops mattering; may return now if it already has
+        abstract long staleAt(S state, long now);
+
+        @Override
+        public void evictStale(long now) {
+            expiryWheel.advance(now, (userId, time) -> {
+                S state = states.get(userId);
+                if (state == null) {
+                    return ExpiryWheel.REMOVED;
+                }
+                long staleAt = staleAt(state, time);
+                if (staleAt - time <= 0 && states.remove(userId, state)) {
+                    return ExpiryWheel.REMOVED;
+                }
+                return staleAt;
+            });
+        }
+
+        // what cleanUpBuckets used to do every window; kept to compare against the wheel
+        void evictStaleFullScan(long now)
+        {
+            states.entrySet().removeIf(entry -> staleAt(entry.getValue(), now) - now <= 0);
+        }
+
+        @Override
+        public int size() {
+            return states.size();
+        }
+    }
+
+    /*
+    Original algorithm, one Bucket per key. Checks serialize on the strategy.
+    Reservations fill the windows that follow the current one back to back, maxRequests each
+    (no credits); a booking never straddles two windows.
+    Memory: Bucket 32 + two AtomicInteger 32 = ~64 bytes per key.
+    */
+    static class FixedWindowStrategy extends KeyedStrategy<Bucket>
+    {
+        private final int maxRequests;
+        private final long windowNanos;
+        private final int maxCredits;
+
+        FixedWindowStrategy(int maxRequests, long windowNanos, int maxCredits)
+        {
+            super(windowNanos);
+            this.maxRequests = maxRequests;
+            this.windowNanos = windowNanos;
+            this.maxCredits = maxCredits;
+        }
+
+        @Override
+        public synchronized boolean tryAcquire(String userId, int permits, long currTime)
+        {
+            return take(currentBucket(userId, currTime), permits);
+        }
+
+        @Override
+        public synchronized long reserve(String userId, int permits, long maxWaitNanos, long currTime)
+        {
+            Bucket bucket = currentBucket(userId, currTime);
+            if(take(bucket, permits))
             {
-                bucket.incrementCount();
-                return false;
+                return 0;
+            }
+            if(permits > maxRequests)
+            {
+                return -1;
+            }
+            // position of the booking in the run of future windows, skipping the rest of the last one if it does not fit
+            int used = bucket.reserved % maxRequests;
+            int first = used + permits > maxRequests ? bucket.reserved - used + maxRequests : bucket.reserved;
+            long wait = bucket.endTime + (first / maxRequests) * windowNanos - currTime;
+            if(wait > maxWaitNanos)
+            {
+                return -1;
+            }
+            bucket.reserved = first + permits;
+            return wait;
+        }
+
+        private Bucket currentBucket(String userId, long currTime)
+        {
+            // check for user bucket
+            Bucket bucket = states.get(userId);
+            if(bucket == null)
+            {
+                bucket = new Bucket(currTime, currTime + windowNanos, 0, maxCredits);
+                states.put(userId, bucket);
+                scheduleExpiry(userId, currTime);
             }
-            else if(bucket.getCurrentCredits() > 0)
+            //if present, but outside of window
+            else if(currTime - bucket.endTime >= 0)
+            {
+                if(bucket.reserved == 0)
+                {
+                    bucket.reset(currTime, currTime + windowNanos, 0, maxCredits);
+                }
+                else
+                {
+                    // booked windows run on from the old end time; the ones already over have been used
+                    long passed = (currTime - bucket.endTime) / windowNanos;
+                    long start = bucket.endTime + passed * windowNanos;
+                    bucket.reserved -= (int) Math.min(bucket.reserved, passed * maxRequests);
+                    int booked = Math.min(maxRequests, bucket.reserved);
+                    bucket.reserved -= booked;
+                    bucket.reset(start, start + windowNanos, booked, maxCredits);
+                }
+            }
+            return bucket;
+        }
+
+        private boolean take(Bucket bucket, int permits)
+        {
+            // the window's allowance is used first, then credits
+            int fromCount = Math.min(permits, Math.max(0, maxRequests - bucket.getCurrentCount()));
+            int fromCredits = permits - fromCount;
+            if(fromCredits > bucket.getCurrentCredits())
             {
-                bucket.decrementCredits();
                 return false;
             }
-            else
+            bucket.addCount(fromCount);
+            bucket.takeCredits(fromCredits);
+            return true;
+        }
+
+        @Override
+        synchronized long staleAt(Bucket bucket, long now) {
+            // plus one window per window's worth of bookings
+            return bucket.endTime + ((bucket.reserved + maxRequests - 1) / maxRequests) * windowNanos;
+        }
+    }
+
+    /*
+    Generic cell rate algorithm: one long per key, the theoretical arrival time (TAT) of the next
+    request, updated with a single CAS. No lock, no allocation after a key's first request.
+    Memory: AtomicLong ~16 bytes per key.
+    */
+    static class GcraStrategy extends KeyedStrategy<AtomicLong>
+    {
+        private final long emissionIntervalNanos;
+        private final long burstToleranceNanos;
+
+        GcraStrategy(int maxRequests, long windowNanos, int maxCredits)
+        {
+            super(windowNanos);
+            this.emissionIntervalNanos = windowNanos / maxRequests;
+            this.burstToleranceNanos = emissionIntervalNanos * (maxRequests + maxCredits - 1);
+        }
+
+        @Override
+        public boolean tryAcquire(String userId, int permits, long now) {
+            return reserve(userId, permits, 0, now) == 0;
+        }
+
+        /*
+        n permits move the TAT n intervals on; they fit once the new TAT is no further than
+        burstTolerance + one interval ahead of now. A reservation just books the TAT anyway and
+        reports how long until that holds.
+        */
+        @Override
+        public long reserve(String userId, int permits, long maxWaitNanos, long now) {
+            long increment = permits * emissionIntervalNanos;
+            AtomicLong arrivalTime = arrivalTime(userId, now);
+            while (true) {
+                long tat = arrivalTime.get();
+                long base = tat - now > 0 ? tat : now; // nanoTime may wrap, so compare differences
+                long wait = Math.max(0, base + increment - now - burstToleranceNanos - emissionIntervalNanos);
+                if (wait > maxWaitNanos) {
+                    return -1;
+                }
+                if (arrivalTime.compareAndSet(tat, base + increment)) {
+                    return wait;
+                }
+            }
+        }
+
+        @Override
+        public int acquireUpTo(String userId, int requests, long now) {
+            AtomicLong arrivalTime = arrivalTime(userId, now);
+            while (true) {
+                long tat = arrivalTime.get();
+                long base = tat - now > 0 ? tat : now;
+                long headroom = burstToleranceNanos + emissionIntervalNanos - (base - now);
+                int granted = (int) Math.min(requests, Math.max(0, headroom / emissionIntervalNanos));
+                if (granted == 0) {
+                    return 0;
+                }
+                if (arrivalTime.compareAndSet(tat, base + granted * emissionIntervalNanos)) {
+                    return granted;
+                }
+            }
+        }
+
+        private AtomicLong arrivalTime(String userId, long now)
+        {
+            // any TAT in the past means a full burst is available
+            return state(userId, now, time -> new AtomicLong(time - 1));
+        }
+
+        @Override
+        long staleAt(AtomicLong arrivalTime, long now) {
+            // a key whose TAT has passed is back to a full burst, same as a key never seen
+            return arrivalTime.get();
+        }
+    }
+
+    /*
+    Tokens refill continuously; the refill is computed lazily from the nanos elapsed since the
+    key was last seen, so idle keys cost nothing. The balance is kept as banked refill time
+    (one token per nanosPerToken), which keeps the arithmetic exact in longs.
+    Memory: TokenBucket header 12 + two longs 16 = ~32 bytes per key (plus its monitor when contended).
+    */
+    static class TokenBucketStrategy extends KeyedStrategy<TokenBucketStrategy.TokenBucket>
+    {
+        private final long nanosPerToken;
+        private final long capacityNanos;
+
+        TokenBucketStrategy(int maxRequests, long windowNanos, int maxCredits)
+        {
+            super(windowNanos);
+            this.nanosPerToken = windowNanos / maxRequests;
+            this.capacityNanos = nanosPerToken * (maxRequests + maxCredits);
+        }
+
+        static class TokenBucket
+        {
+            long storedNanos; // refill time banked so far; one token per nanosPerToken
+            long lastRefill;
+        }
+
+        @Override
+        public boolean tryAcquire(String userId, int permits, long now) {
+            return reserve(userId, permits, 0, now) == 0;
+        }
+
+        // a reservation may take the balance negative; later requests wait for the debt to refill
+        @Override
+        public long reserve(String userId, int permits, long maxWaitNanos, long now) {
+            TokenBucket bucket = refilled(userId, now);
+            synchronized (bucket) {
+                long cost = permits * nanosPerToken;
+                long wait = Math.max(0, cost - bucket.storedNanos);
+                if (wait > maxWaitNanos) {
+                    return -1;
+                }
+                bucket.storedNanos -= cost;
+                return wait;
+            }
+        }
+
+        @Override
+        public int acquireUpTo(String userId, int requests, long now) {
+            TokenBucket bucket = refilled(userId, now);
+            synchronized (bucket) {
+                int granted = (int) Math.min(requests, Math.max(0, bucket.storedNanos / nanosPerToken));
+                bucket.storedNanos -= granted * nanosPerToken;
+                return granted;
+            }
+        }
+
+        private TokenBucket refilled(String userId, long now)
+        {
+            TokenBucket bucket = state(userId, now, time -> {
+                TokenBucket created = new TokenBucket();
+                created.storedNanos = capacityNanos;
+                created.lastRefill = time;
+                return created;
+            });
+            synchronized (bucket) {
+                long elapsed = now - bucket.lastRefill;
+                if (elapsed > 0) {
+                    bucket.storedNanos = Math.min(capacityNanos, bucket.storedNanos + elapsed);
+                    bucket.lastRefill = now;
+                }
+            }
+            return bucket;
+        }
+
+        @Override
+        long staleAt(TokenBucket bucket, long now) {
+            synchronized (bucket) {
+                // full again once the missing refill time has elapsed
+                return bucket.lastRefill + (capacityNanos - bucket.storedNanos);
+            }
+        }
+    }
+
+    /*
+    Remembers the time of each admitted request in a per-key ring of maxRequests slots: a
+    request is admitted when fewer than maxRequests of them fall inside the last window.
+    Exact, but the state grows with the limit. A reservation is logged at the time it may be
+    used, overwriting the entries that will have left the window by then: the log stays full,
+    so nothing else is admitted before those entries would have expired anyway.
+    Memory: long[maxRequests] 16 + 8 * maxRequests, plus the log object ~24 bytes per key.
+    */
+    static class SlidingWindowLogStrategy extends KeyedStrategy<SlidingWindowLogStrategy.RequestLog>
+    {
+        private final int maxRequests;
+        private final long windowNanos;
+
+        SlidingWindowLogStrategy(int maxRequests, long windowNanos)
+        {
+            super(windowNanos);
+            this.maxRequests = maxRequests;
+            this.windowNanos = windowNanos;
+        }
+
+        static class RequestLog
+        {
+            final long[] times;
+            int count;
+            int oldest;
+
+            RequestLog(int maxRequests)
+            {
+                this.times = new long[maxRequests];
+            }
+
+            long newest()
             {
+                return times[(oldest + count - 1) % times.length];
+            }
+        }
+
+        @Override
+        public boolean tryAcquire(String userId, int permits, long now) {
+            return reserve(userId, permits, 0, now) == 0;
+        }
+
+        @Override
+        public long reserve(String userId, int permits, long maxWaitNanos, long now) {
+            if (permits > maxRequests) {
+                return -1;
+            }
+            RequestLog log = state(userId, now, time -> new RequestLog(maxRequests));
+            synchronized (log) {
+                while (log.count > 0 && now - log.times[log.oldest] >= windowNanos) {
+                    log.oldest = (log.oldest + 1) % log.times.length;
+                    log.count--;
+                }
+                // the oldest `expiring` entries must leave the window first
+                int expiring = log.count + permits - maxRequests;
+                long wait = expiring <= 0 ? 0 : log.times[(log.oldest + expiring - 1) % log.times.length] + windowNanos - now;
+                if (wait > maxWaitNanos) {
+                    return -1;
+                }
+                if (expiring > 0) {
+                    log.oldest = (log.oldest + expiring) % log.times.length;
+                    log.count -= expiring;
+                }
+                // never log before an earlier reservation, so the ring stays in time order
+                long time = log.count > 0 && log.newest() - (now + wait) > 0 ? log.newest() : now + wait;
+                for (int i = 0; i < permits; i++) {
+                    log.times[(log.oldest + log.count) % log.times.length] = time;
+                    log.count++;
+                }
+                return wait;
+            }
+        }
+
+        @Override
+        long staleAt(RequestLog log, long now) {
+            synchronized (log) {
+                return log.count == 0 ? now : log.newest() + windowNanos;
+            }
+        }
+    }
+
+    /*
+    Counts requests in fixed windows but judges each request against
+    previous * (1 - elapsed fraction of the current window) + current,
+    i.e. it assumes the previous window's requests were spread evenly. Constant state; it
+    overshoots when they were bunched at the end of the previous window. A reservation waits
+    for the previous window's weight to decay far enough, booking into the current window or,
+    if that cannot take it, the next one; nothing is booked further ahead.
+    Memory: WindowCounter header 12 + long + three ints = ~32 bytes per key.
+    */
+    static class SlidingWindowCounterStrategy extends KeyedStrategy<SlidingWindowCounterStrategy.WindowCounter>
+    {
+        private final int maxRequests;
+        private final long windowNanos;
+
+        SlidingWindowCounterStrategy(int maxRequests, long windowNanos)
+        {
+            super(windowNanos);
+            this.maxRequests = maxRequests;
+            this.windowNanos = windowNanos;
+        }
+
+        static class WindowCounter
+        {
+            long windowStart;
+            int previous;
+            int current;
+            int next; // reserved for the window after the current one
+        }
+
+        @Override
+        public boolean tryAcquire(String userId, int permits, long now) {
+            return reserve(userId, permits, 0, now) == 0;
+        }
+
+        @Override
+        public long reserve(String userId, int permits, long maxWaitNanos, long now) {
+            WindowCounter counter = state(userId, now, time -> {
+                WindowCounter created = new WindowCounter();
+                created.windowStart = time;
+                return created;
+            });
+            synchronized (counter) {
+                long elapsed = now - counter.windowStart;
+                if (elapsed >= windowNanos) {
+                    long windows = elapsed / windowNanos;
+                    counter.previous = windows == 1 ? counter.current : windows == 2 ? counter.next : 0;
+                    counter.current = windows == 1 ? counter.next : 0;
+                    counter.next = 0;
+                    counter.windowStart += windows * windowNanos;
+                    elapsed -= windows * windowNanos;
+                }
+                // bookings for the current window would count against the next one's, so once the next is in use stay there
+                long offset = counter.next == 0 ? admittedAfter(counter.previous, counter.current, permits) : windowNanos;
+                if (offset >= windowNanos) {
+                    offset = windowNanos + admittedAfter(counter.current, counter.next, permits);
+                    if (offset >= 2 * windowNanos) {
+                        return -1;
+                    }
+                }
+                long wait = Math.max(0, offset - elapsed);
+                if (wait > maxWaitNanos) {
+                    return -1;
+                }
+                if (offset < windowNanos) {
+                    counter.current += permits;
+                } else {
+                    counter.next += permits;
+                }
+                return wait;
+            }
+        }
+
+        // nanos into a window from which previous * overlap + current + permits - 1 < maxRequests; windowNanos if never
+        private long admittedAfter(int previous, int current, int permits)
+        {
+            int room = maxRequests - current - permits + 1;
+            if (room <= 0) {
+                return windowNanos;
+            }
+            if (previous < room) {
+                return 0;
+            }
+            // previous * (1 - t / window) < room
+            return Math.min(windowNanos, (long) (windowNanos * (1.0 - (double) room / previous)) + 1);
+        }
+
+        @Override
+        long staleAt(WindowCounter counter, long now) {
+            synchronized (counter) {
+                // every counter has rolled out of the sliding window by then
+                return counter.windowStart + (counter.next == 0 ? 2 : 3) * windowNanos;
+            }
+        }
+    }
+
+    /*
+    GCRA in a fixed-size table of packed longs, for millions of keys with bounded memory and
+    no per-key objects. The key itself is never stored: a 64-bit hash of it picks two buckets of
+    8 slots (one cache line each) and supplies a 20-bit tag. Each slot packs
+        tag (20 bits) | theoretical arrival time (44 bits, microseconds since the limiter started)
+    so claiming a slot and updating it are the same single CAS. A slot whose TAT has passed is
+    free (its key would get a full burst anyway); when neither bucket has a free slot the one with the
+    oldest TAT is reused, which is the key closest to a full burst, so an evicted key gains at
+    most its remaining deficit. Memory is exactly 8 bytes per slot, on or off the heap.
+    Limits: per-key rates up to 1M/s (microsecond resolution); TATs are compared modulo 2^44 us
+    (~200 days), so a slot left untouched for over ~100 days can misread as far in the future.
+    */
+    public static class CompactGcraStrategy implements Strategy
+    {
+        private static final int BUCKET_SLOTS = 8;
+        private static final int TAG_BITS = 20;
+        private static final int TIME_BITS = 64 - TAG_BITS;
+        private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+        private static final VarHandle HEAP_SLOTS = MethodHandles.arrayElementVarHandle(long[].class);
+        private static final VarHandle BUFFER_SLOTS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+        private final long[] heapSlots;
+        private final ByteBuffer offHeapSlots;
+        private final int bucketMask;
+        private final long emissionIntervalMicros;
+        private final long burstToleranceMicros;
+        private final long originNanos;
+        private static final int SWEEP_STEPS = 64;
+        private int sweepCursor; // only the cleanup thread sweeps
+
+        // slots is rounded up to a power of two (at least one bucket); for a limiter on System.nanoTime
+        public CompactGcraStrategy(int maxRequests, int timeWindow, int maxCredits, int slots, boolean offHeap)
+        {
+            this(maxRequests, timeWindow, maxCredits, slots, offHeap, System::nanoTime);
+        }
+
+        // ticker must be the one the limiter passes as now: stored times count from its reading here
+        public CompactGcraStrategy(int maxRequests, int timeWindow, int maxCredits, int slots, boolean offHeap, LongSupplier ticker)
+        {
+            if (maxRequests <= 0 || timeWindow <= 0 || maxCredits < 0 || slots <= 0 || slots > 1 << 28) {
+                throw new IllegalArgumentException("Requests, window and slots (up to 2^28) must be positive, credits non-negative.");
+            }
+            int tableSize = Math.max(BUCKET_SLOTS, Integer.highestOneBit(slots - 1) << 1);
+            this.heapSlots = offHeap ? null : new long[tableSize];
+            this.offHeapSlots = offHeap ? ByteBuffer.allocateDirect(tableSize * Long.BYTES).order(ByteOrder.nativeOrder()) : null;
+            this.bucketMask = tableSize / BUCKET_SLOTS - 1;
+            this.emissionIntervalMicros = Math.max(1, TimeUnit.SECONDS.toMicros(timeWindow) / maxRequests);
+            this.burstToleranceMicros = emissionIntervalMicros * (maxRequests + maxCredits - 1);
+            this.originNanos = ticker.getAsLong();
+        }
+
+        public long footprintBytes()
+        {
+            return (long) (bucketMask + 1) * BUCKET_SLOTS * Long.BYTES;
+        }
+
+        @Override
+        public boolean tryAcquire(String userId, int permits, long now) {
+            return reserve(hash(userId), permits, 0, now) == 0;
+        }
+
+        @Override
+        public long reserve(String userId, int permits, long maxWaitNanos, long now) {
+            return reserve(hash(userId), permits, maxWaitNanos, now);
+        }
+
+        // same as tryAcquire(String, long) for a key already hashed with hash()
+        public boolean tryAcquire(long keyHash, long now)
+        {
+            return reserve(keyHash, 1, 0, now) == 0;
+        }
+
+        // GCRA as in GcraStrategy.reserve, in microseconds
+        public long reserve(long keyHash, int permits, long maxWaitNanos, long now)
+        {
+            long increment = permits * emissionIntervalMicros;
+            long maxWaitMicros = maxWaitNanos / 1000;
+            long nowMicros = ((now - originNanos) / 1000) & TIME_MASK;
+            long tag = keyHash >>> TIME_BITS;
+            if (tag == 0) {
+                tag = 1; // 0 marks an empty slot
+            }
+            int first = (int) (keyHash & bucketMask) * BUCKET_SLOTS;
+            int second = (int) (mix(keyHash) & bucketMask) * BUCKET_SLOTS;
+            while (true) {
+                int target = -1;
+                long targetSlot = 0;
+                long bestRank = Long.MAX_VALUE;
+                for (int n = 0; n < 2 * BUCKET_SLOTS; n++) {
+                    int i = n < BUCKET_SLOTS ? first + n : second + n - BUCKET_SLOTS;
+                    long slot = get(i);
+                    if (slot != 0 && slot >>> TIME_BITS == tag) {
+                        target = i;
+                        targetSlot = slot;
+                        break;
+                    }
+                    // empty slots first, then expired ones, then the TAT nearest to now
+                    long rank;
+                    if (slot == 0) {
+                        rank = Long.MIN_VALUE;
+                    }
+                    else {
+                        long pending = elapsed(nowMicros, slot & TIME_MASK);
+                        rank = pending <= 0 ? Long.MIN_VALUE + 1 : pending;
+                    }
+                    if (rank < bestRank) {
+                        bestRank = rank;
+                        target = i;
+                        targetSlot = slot;
+                    }
+                }
+                boolean ours = targetSlot != 0 && targetSlot >>> TIME_BITS == tag;
+                long tat = ours ? targetSlot & TIME_MASK : nowMicros;
+                long base = elapsed(tat, nowMicros) < 0 ? tat : nowMicros;
+                long wait = Math.max(0, elapsed(nowMicros, base) + increment - burstToleranceMicros - emissionIntervalMicros);
+                if (wait > maxWaitMicros) {
+                    return -1;
+                }
+                long updated = tag << TIME_BITS | ((base + increment) & TIME_MASK);
+                if (compareAndSet(target, targetSlot, updated)) {
+                    return wait * 1000;
+                }
+            }
+        }
+
+        // to - from in microseconds, valid while the two are within 2^43 us of each other
+        private static long elapsed(long from, long to)
+        {
+            return ((to - from) << TAG_BITS) >> TAG_BITS;
+        }
+
+        private long get(int index)
+        {
+            return heapSlots != null ? (long) HEAP_SLOTS.getVolatile(heapSlots, index)
+                    : (long) BUFFER_SLOTS.getVolatile(offHeapSlots, index * Long.BYTES);
+        }
+
+        private boolean compareAndSet(int index, long expected, long updated)
+        {
+            return heapSlots != null ? HEAP_SLOTS.compareAndSet(heapSlots, index, expected, updated)
+                    : BUFFER_SLOTS.compareAndSet(offHeapSlots, index * Long.BYTES, expected, updated);
+        }
+
+        // 64-bit string hash; String.hashCode has too few bits to tell millions of keys apart
+        public static long hash(String userId)
+        {
+            long h = 0x9E3779B97F4A7C15L;
+            for (int i = 0; i < userId.length(); i++) {
+                h = (h ^ userId.charAt(i)) * 0xBF58476D1CE4E5B9L;
+            }
+            return mix(h);
+        }
+
+        static long mix(long h)
+        {
+            h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+            h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+            return h ^ (h >>> 31);
+        }
+
+        @Override
+        public void evictStale(long now) {
+            // slots are reclaimed in place, so this only keeps size() meaningful: each call
+            // clears expired slots in the next 1/SWEEP_STEPS of the table rather than all of it
+            long nowMicros = ((now - originNanos) / 1000) & TIME_MASK;
+            int tableSize = (bucketMask + 1) * BUCKET_SLOTS;
+            int step = Math.max(BUCKET_SLOTS, tableSize / SWEEP_STEPS);
+            int from = sweepCursor;
+            for (int i = from; i < from + step && i < tableSize; i++) {
+                long slot = get(i);
+                if (slot != 0 && elapsed(slot & TIME_MASK, nowMicros) > 0) {
+                    compareAndSet(i, slot, 0);
+                }
+            }
+            sweepCursor = from + step >= tableSize ? 0 : from + step;
+        }
+
+        @Override
+        public int size() {
+            int occupied = 0;
+            for (int i = 0; i < (bucketMask + 1) * BUCKET_SLOTS; i++) {
+                if (get(i) != 0) {
+                    occupied++;
+                }
+            }
+            return occupied;
+        }
+    }
+
+    /*
+    Cluster-wide state behind DistributedStrategy: it owns each key's global allowance and hands
+    it out in batches. It is normally remote (a shared cache or a coordination service), so it
+    is called once per lease, never once per request.
+    */
+    public interface PermitStore
+    {
+        // takes up to permits of the key's global allowance and returns how many were granted
+        int borrow(String userId, int permits);
+    }
+
+    /*
+    In-process PermitStore for tests and simulations: a local strategy holds the global limit and
+    every call can be delayed to stand in for a network round trip. With wholeLeases a borrow
+    gets everything it asked for or nothing, so the global strategy's burst must cover a lease.
+    */
+    public static class LoopbackPermitStore implements PermitStore
+    {
+        private final Strategy global;
+        private final LongSupplier ticker;
+        private final long latencyNanos;
+        private final boolean wholeLeases;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder granted = new LongAdder();
+
+        public LoopbackPermitStore(Strategy global, LongSupplier ticker, long latencyNanos)
+        {
+            this(global, ticker, latencyNanos, false);
+        }
+
+        public LoopbackPermitStore(Strategy global, LongSupplier ticker, long latencyNanos, boolean wholeLeases)
+        {
+            this.global = global;
+            this.ticker = ticker;
+            this.latencyNanos = latencyNanos;
+            this.wholeLeases = wholeLeases;
+        }
+
+        @Override
+        public int borrow(String userId, int permits) {
+            calls.increment();
+            if (latencyNanos > 0) {
+                LockSupport.parkNanos(latencyNanos);
+            }
+            int result = wholeLeases ? (global.tryAcquire(userId, permits, ticker.getAsLong()) ? permits : 0)
+                    : global.acquireUpTo(userId, permits, ticker.getAsLong());
+            granted.add(result);
+            return result;
+        }
+
+        public long getCalls()
+        {
+            return calls.sum();
+        }
+
+        public long getGranted()
+        {
+            return granted.sum();
+        }
+    }
+
+    /*
+    Serves requests from a local lease of permits borrowed from a shared PermitStore, leaseSize
+    at a time, so a check is an in-memory decrement and only every leaseSize-th request per key
+    talks to the store. When a lease runs below a quarter it is topped up in the background.
+    Leased permits expire after leaseTtl: a node cannot sit on permits and spend them later, so
+    in any interval the cluster admits at most what the store granted in that interval plus one
+    lease TTL before it. Permits that expire unused are lost, which errs towards under-admission.
+    After the store grants nothing, a node waits leaseTtl / 10 before asking again for that key.
+    */
+    public static class DistributedStrategy extends KeyedStrategy<DistributedStrategy.Lease>
+    {
+        private final PermitStore store;
+        private final int leaseSize;
+        private final long leaseTtlNanos;
+        private final long retryNanos;
+        private final Executor prefetchExecutor;
+        private final LongAdder expiredPermits = new LongAdder();
+
+        // prefetchExecutor may be null to borrow only when a lease is empty
+        public DistributedStrategy(PermitStore store, int leaseSize, long leaseTtl, TimeUnit unit, Executor prefetchExecutor)
+        {
+            super(unit.toNanos(leaseTtl));
+            if (leaseSize <= 0 || leaseTtl <= 0) {
+                throw new IllegalArgumentException("Lease size and TTL must be positive.");
+            }
+            this.store = store;
+            this.leaseSize = leaseSize;
+            this.leaseTtlNanos = unit.toNanos(leaseTtl);
+            this.retryNanos = Math.max(1, leaseTtlNanos / 10);
+            this.prefetchExecutor = prefetchExecutor;
+        }
+
+        static class Lease
+        {
+            int remaining;
+            long expiresAt;
+            long retryAt;
+            boolean refilling;
+        }
+
+        @Override
+        public boolean tryAcquire(String userId, int permits, long now) {
+            Lease lease = state(userId, now, time -> {
+                Lease created = new Lease();
+                created.expiresAt = time;
+                created.retryAt = time;
+                return created;
+            });
+            synchronized (lease) {
+                if (lease.remaining > 0 && lease.expiresAt - now <= 0) {
+                    expiredPermits.add(lease.remaining);
+                    lease.remaining = 0;
+                }
+                if (lease.remaining < permits && now - lease.retryAt >= 0) {
+                    borrow(userId, lease, Math.max(leaseSize, permits - lease.remaining), now);
+                }
+                if (lease.remaining < permits) {
+                    return false;
+                }
+                lease.remaining -= permits;
+                if (prefetchExecutor != null && lease.remaining < leaseSize / 4 && !lease.refilling && now - lease.retryAt >= 0) {
+                    lease.refilling = true;
+                    try {
+                        prefetchExecutor.execute(() -> prefetch(userId, lease, now));
+                    }
+                    catch (RejectedExecutionException ex) {
+                        // executor saturated or shut down: top up here, as without one
+                        lease.refilling = false;
+                        borrow(userId, lease, leaseSize, now);
+                    }
+                }
                 return true;
             }
         }
 
-        //if present, but outside of window
-        bucket.reset(currTime, currTime+(timeWindow * 1000L), maxCredits);
-        return false;
+        // a lease holds permits for now only, so a reservation is served from it immediately or not at all
+        @Override
+        public long reserve(String userId, int permits, long maxWaitNanos, long now) {
+            return tryAcquire(userId, permits, now) ? 0 : -1;
+        }
+
+        // caller holds the lease lock, which coalesces concurrent borrowers for this key
+        private void borrow(String userId, Lease lease, int permits, long now)
+        {
+            int granted = store.borrow(userId, permits);
+            if (granted == 0) {
+                lease.retryAt = now + retryNanos;
+            }
+            else {
+                lease.remaining += granted;
+                lease.expiresAt = now + leaseTtlNanos;
+            }
+        }
+
+        private void prefetch(String userId, Lease lease, long requestedAt)
+        {
+            int granted = 0;
+            try {
+                granted = store.borrow(userId, leaseSize);
+            }
+            catch (RuntimeException ex) {
+                System.err.println("Failed to prefetch permits for " + userId + ": " + ex.getMessage());
+            }
+            finally {
+                // also on an Error, or the key would never prefetch again
+                synchronized (lease) {
+                    lease.refilling = false;
+                    if (granted == 0) {
+                        lease.retryAt = requestedAt + retryNanos;
+                    }
+                    else {
+                        // the TTL runs from when the permits were asked for, never later than the store granted them
+                        if (lease.remaining > 0 && lease.expiresAt - requestedAt <= 0) {
+                            expiredPermits.add(lease.remaining);
+                            lease.remaining = 0;
+                        }
+                        lease.remaining += granted;
+                        lease.expiresAt = requestedAt + leaseTtlNanos;
+                    }
+                }
+            }
+        }
+
+        @Override
+        long staleAt(Lease lease, long now) {
+            synchronized (lease) {
+                return lease.refilling ? now + leaseTtlNanos : Math.max(lease.expiresAt, lease.retryAt);
+            }
+        }
+
+        public long getExpiredPermits()
+        {
+            return expiredPermits.sum();
+        }
     }
 
     public static class Bucket
@@ -73,6 +1188,7 @@ public class RateLimiter {
         private long endTime;
         private AtomicInteger currentCount;
         private AtomicInteger currentCredits;
+        private int reserved; // permits booked into the windows after this one, maxRequests per window
         public Bucket(long startTime, long endTime, int currentCount, int currentCredits)
         {
             this.startTime = startTime;
@@ -86,11 +1202,21 @@ public class RateLimiter {
             this.currentCount.incrementAndGet();
         }
 
+        public void addCount(int count)
+        {
+            this.currentCount.addAndGet(count);
+        }
+
         public void decrementCredits()
         {
             this.currentCredits.decrementAndGet();
         }
 
+        public void takeCredits(int credits)
+        {
+            this.currentCredits.addAndGet(-credits);
+        }
+
         public int getCurrentCount() {
             return currentCount.get();
         }
@@ -108,15 +1234,297 @@ public class RateLimiter {
         }
 
         public void reset(long startTime, long endTime, int maxCredits)
+        {
+            reset(startTime, endTime, 1, maxCredits);
+        }
+
+        public void reset(long startTime, long endTime, int currentCount, int maxCredits)
         {
             this.startTime = startTime;
             this.endTime = endTime;
-            this.currentCount.set(1);
+            this.currentCount.set(currentCount);
             this.currentCredits.set(maxCredits);
         }
     }
 
-    public static void main(String[] args) {
+    // threads hammer a shared key space; reports checks per second and how many were admitted
+    static void benchmark(Algorithm algorithm, int threads, int keys, int checksPerThread) throws InterruptedException
+    {
+        RateLimiter rateLimiter = new RateLimiter(100, 1, 10, algorithm);
+        String[] userIds = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            userIds[i] = "user" + i;
+        }
+        AtomicLong admitted = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                long allowed = 0;
+                for (int i = 0; i < checksPerThread; i++) {
+                    if (!rateLimiter.rateLimit(userIds[(i * 31 + seed) % keys])) {
+                        allowed++;
+                    }
+                }
+                admitted.addAndGet(allowed);
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        rateLimiter.close();
+        System.out.printf("%-22s threads=%d  %6.1f M checks/s  admitted=%d%n", algorithm, threads,
+                threads * (double) checksPerThread * 1000 / elapsed, admitted.get());
+    }
+
+    /*
+    Bursty traffic on one key against a simulated clock: mostly idle, with bursts of up to three
+    times the limit, often right around a window boundary. Reports the most requests admitted in
+    any window-long interval (the limit is 100) and the share of offered requests admitted.
+    */
+    static void accuracyBenchmark(Algorithm algorithm, long seed)
+    {
+        AtomicLong clock = new AtomicLong();
+        RateLimiter rateLimiter = new RateLimiter(100, 1, 10, algorithm, clock::get);
+        long windowNanos = TimeUnit.SECONDS.toNanos(1);
+        Random random = new Random(seed);
+        long[] admittedAt = new long[200_000];
+        int admitted = 0;
+        int offered = 0;
+        for (int tick = 0; tick < 600; tick++) { // 60 simulated seconds in 100 ms ticks
+            long tickStart = tick * windowNanos / 10;
+            if (random.nextInt(4) != 0) {
+                continue;
+            }
+            int burst = random.nextInt(300);
+            // bursts land in the last or first 10 ms of a second half the time
+            long offset = tick % 10 == 9 || tick % 10 == 0 ? (tick % 10 == 9 ? 90_000_000L : 0) : random.nextInt(90_000_000);
+            for (int i = 0; i < burst; i++) {
+                clock.set(tickStart + offset + i * 10_000L);
+                offered++;
+                if (!rateLimiter.rateLimit("user")) {
+                    admittedAt[admitted++] = clock.get();
+                }
+            }
+        }
+        rateLimiter.close();
+        int worst = 0;
+        for (int from = 0, to = 0; to < admitted; to++) {
+            while (admittedAt[to] - admittedAt[from] >= windowNanos) {
+                from++;
+            }
+            worst = Math.max(worst, to - from + 1);
+        }
+        System.out.printf("%-22s worst window=%3d (limit 100)  admitted %5d of %6d offered%n", algorithm, worst, admitted, offered);
+    }
+
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // retained heap per key after one request each, excluding the key strings
+    static void memoryPerKey(Algorithm algorithm, String[] userIds)
+    {
+        long before = usedHeap();
+        RateLimiter rateLimiter = new RateLimiter(100, 60, 10, algorithm);
+        for (String userId : userIds) {
+            rateLimiter.rateLimit(userId);
+        }
+        long bytes = usedHeap() - before;
+        System.out.printf("%-22s %4d bytes/key (%d keys)%n", algorithm, bytes / userIds.length, rateLimiter.size());
+        rateLimiter.close();
+    }
+
+    /*
+    Every key sends burst + 3 requests in rounds at the same instant, so an exact limiter admits
+    exactly burst per key. Anything above that is a live key that lost its slot and came back
+    with a full burst. Keys are simulated by their hashes, so no key strings are kept.
+    */
+    static void compactAccuracy(int keys, int slots, boolean offHeap)
+    {
+        int maxRequests = 5;
+        int maxCredits = 2;
+        long now = System.nanoTime();
+        CompactGcraStrategy strategy = new CompactGcraStrategy(maxRequests, 60, maxCredits, slots, offHeap, () -> now);
+        int burst = maxRequests + maxCredits;
+        long admitted = 0;
+        long begin = System.nanoTime();
+        for (int round = 0; round < burst + 3; round++) {
+            for (int key = 0; key < keys; key++) {
+                if (strategy.tryAcquire(CompactGcraStrategy.mix(key), now)) {
+                    admitted++;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        long expected = (long) keys * burst;
+        System.out.printf("compact %-8s keys=%,d slots=%,d  %,d MB (%.1f bytes/key)  over-admitted %.3f%%  %.1f M checks/s%n",
+                offHeap ? "off-heap" : "heap", keys, strategy.footprintBytes() / Long.BYTES, strategy.footprintBytes() >> 20,
+                (double) strategy.footprintBytes() / keys, 100.0 * (admitted - expected) / expected,
+                (double) keys * (burst + 3) * 1000 / elapsed);
+    }
+
+    /*
+    Keys arrive at 5k per 10 ms step and go stale a window (1 s) after their only request, so
+    ~500k keys are live at any time. The old cleanup scanned the whole map on every pass; the
+    wheel only touches the keys whose deadline has come.
+    */
+    static void expiryBenchmark()
+    {
+        long windowNanos = TimeUnit.SECONDS.toNanos(1);
+        long stepNanos = TimeUnit.MILLISECONDS.toNanos(10);
+        for (boolean wheel : new boolean[] {false, true}) {
+            GcraStrategy strategy = new GcraStrategy(1, windowNanos, 0);
+            long now = 0;
+            int key = 0;
+            long[] passes = new long[150];
+            int measured = 0;
+            while (key < 1_500_000) {
+                for (int i = 0; i < 5_000; i++) {
+                    strategy.tryAcquire("user" + key++, now);
+                }
+                now += stepNanos;
+                long begin = System.nanoTime();
+                if (wheel) {
+                    strategy.evictStale(now);
+                }
+                else {
+                    strategy.evictStaleFullScan(now);
+                }
+                long elapsed = System.nanoTime() - begin;
+                if (key > 750_000) { // measure once the map has reached steady state
+                    passes[measured++] = elapsed;
+                }
+            }
+            Arrays.sort(passes, 0, measured);
+            System.out.printf("%-10s cleanup every 10 ms: median pass %6d us, p90 %6d us, live keys %,d%n",
+                    wheel ? "wheel" : "full scan", passes[measured / 2] / 1000, passes[measured * 9 / 10] / 1000, strategy.size());
+        }
+    }
+
+    // gateway-style batches of 1000 requests over 5000 keys with repeats: per-request calls vs one tryAcquireAll
+    static void batchBenchmark(Algorithm algorithm)
+    {
+        RateLimiter rateLimiter = new RateLimiter(100, 1, 10, algorithm);
+        Random random = new Random(3);
+        List<String> batch = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            batch.add("user" + (int) Math.abs(random.nextGaussian() * 500));
+        }
+        for (int round = 0; round < 2; round++) { // first round warms up
+            long begin = System.nanoTime();
+            long admitted = 0;
+            for (int b = 0; b < 2000; b++) {
+                for (String userId : batch) {
+                    if (rateLimiter.tryAcquire(userId, 1)) {
+                        admitted++;
+                    }
+                }
+            }
+            long single = System.nanoTime() - begin;
+            begin = System.nanoTime();
+            for (int b = 0; b < 2000; b++) {
+                for (boolean ok : rateLimiter.tryAcquireAll(batch)) {
+                    if (ok) {
+                        admitted++;
+                    }
+                }
+            }
+            long batched = System.nanoTime() - begin;
+            if (round == 1) {
+                System.out.printf("%-22s per-request %5.1f ns/req, tryAcquireAll %5.1f ns/req (admitted %d)%n", algorithm,
+                        single / 2_000_000.0, batched / 2_000_000.0, admitted);
+            }
+        }
+        rateLimiter.close();
+    }
+
+    /*
+    Nodes of a cluster, each with its own RateLimiter, hammer a few hot keys for a few seconds.
+    Independent limiters each enforce the full limit; distributed ones share one global limit
+    through a loopback store with a simulated 200 us round trip. The store grants whole leases
+    only, so under saturation a node backs off instead of borrowing the few permits that trickled
+    in since the last call; the global burst (= limit) covers a lease many times over.
+    Overshoot is measured against what one limiter allows over the run (limit per second x
+    seconds + the initial burst).
+    */
+    static void clusterSimulation(boolean distributed, int nodes, int threadsPerNode, long durationMillis) throws InterruptedException
+    {
+        int limit = 2000;
+        int leaseSize = 50;
+        String[] keys = {"tenant-a", "tenant-b", "tenant-c", "tenant-d"};
+        LoopbackPermitStore store = new LoopbackPermitStore(new GcraStrategy(limit, TimeUnit.SECONDS.toNanos(1), 0),
+                System::nanoTime, TimeUnit.MICROSECONDS.toNanos(200), true);
+        ExecutorService prefetcher = Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "lease-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<DistributedStrategy> strategies = new ArrayList<>();
+        List<RateLimiter> limiters = new ArrayList<>();
+        for (int n = 0; n < nodes; n++) {
+            if (distributed) {
+                DistributedStrategy strategy = new DistributedStrategy(store, leaseSize, 100, TimeUnit.MILLISECONDS, prefetcher);
+                strategies.add(strategy);
+                limiters.add(new RateLimiter(strategy, 1, System::nanoTime));
+            }
+            else {
+                limiters.add(new RateLimiter(limit, 1, 0, Algorithm.GCRA));
+            }
+        }
+        AtomicLong admitted = new AtomicLong();
+        AtomicLong checks = new AtomicLong();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        List<Thread> threads = new ArrayList<>();
+        for (RateLimiter limiter : limiters) {
+            for (int t = 0; t < threadsPerNode; t++) {
+                Thread thread = new Thread(() -> {
+                    long allowed = 0;
+                    long count = 0;
+                    for (int i = 0; System.nanoTime() - deadline < 0; i++) {
+                        if (!limiter.rateLimit(keys[i & (keys.length - 1)])) {
+                            allowed++;
+                        }
+                        count++;
+                    }
+                    admitted.addAndGet(allowed);
+                    checks.addAndGet(count);
+                });
+                threads.add(thread);
+                thread.start();
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (RateLimiter limiter : limiters) {
+            limiter.close();
+        }
+        prefetcher.shutdownNow();
+        double allowed = keys.length * (limit * durationMillis / 1000.0 + limit);
+        long expired = strategies.stream().mapToLong(DistributedStrategy::getExpiredPermits).sum();
+        // with whole leases every granting call handed out exactly leaseSize; the rest were refused and backed off
+        System.out.printf("%-11s nodes=%d  admitted %,d vs %,.0f allowed (overshoot %+.1f%%)  %,.1f M checks/s  store calls %,d (%,d granted a lease)  expired permits %,d%n",
+                distributed ? "distributed" : "independent", nodes, admitted.get(), allowed, 100 * (admitted.get() / allowed - 1),
+                checks.get() / (durationMillis * 1000.0), store.getCalls(), store.getGranted() / leaseSize, expired);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
 
         RateLimiter rateLimiter = new RateLimiter(5, 5, 3);
         String userID = "user1";
@@ -133,5 +1541,56 @@ public class RateLimiter {
             }
             System.out.println("i="+i+" - "+rateLimiter.rateLimit(userID));
         }
+        rateLimiter.close();
+
+        // GCRA: a burst of maxRequests + maxCredits, then one request per timeWindow / maxRequests
+        RateLimiter gcra = new RateLimiter(5, 1, 3, Algorithm.GCRA);
+        StringBuilder burst = new StringBuilder("GCRA burst:");
+        for (int i = 1; i <= 10; i++) {
+            burst.append(' ').append(gcra.rateLimit(userID) ? "x" : "ok");
+        }
+        Thread.sleep(210); // one emission interval (200 ms) frees one slot
+        burst.append(" | after 210ms: ").append(gcra.rateLimit(userID) ? "x" : "ok").append(' ').append(gcra.rateLimit(userID) ? "x" : "ok");
+        System.out.println(burst);
+        gcra.close();
+
+        for (Algorithm algorithm : Algorithm.values()) {
+            accuracyBenchmark(algorithm, 42);
+        }
+        String[] userIds = new String[200_000];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = "user" + i;
+        }
+        for (Algorithm algorithm : Algorithm.values()) {
+            memoryPerKey(algorithm, userIds);
+        }
+        // multi-permit calls and reservations on a simulated clock: 5 per second, 3 credits (burst of 8 where supported)
+        for (Algorithm algorithm : Algorithm.values()) {
+            AtomicLong clock = new AtomicLong();
+            try (RateLimiter permits = new RateLimiter(5, 1, 3, algorithm, clock::get)) {
+                System.out.println(algorithm + ": tryAcquire 6: " + permits.tryAcquire(userID, 6) + ", then 3 more: " + permits.tryAcquire(userID, 3)
+                        + ", batch " + Arrays.toString(permits.tryAcquireAll(List.of(userID, "user2", userID, userID))));
+                System.out.println("  reserve 2: wait " + TimeUnit.NANOSECONDS.toMillis(permits.reserve(userID, 2)) + " ms, then reserve 5 within 500 ms: "
+                        + permits.reserve(userID, 5, 500, TimeUnit.MILLISECONDS));
+                clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+                System.out.println("  after 1s, reserve 1: wait " + TimeUnit.NANOSECONDS.toMillis(permits.reserve(userID, 1)) + " ms");
+            }
+        }
+        for (Algorithm algorithm : Algorithm.values()) {
+            batchBenchmark(algorithm);
+        }
+
+        clusterSimulation(false, 4, 2, 3000);
+        clusterSimulation(true, 4, 2, 3000);
+
+        expiryBenchmark();
+        compactAccuracy(10_000_000, 1 << 24, false);
+        compactAccuracy(10_000_000, 1 << 24, true);
+        compactAccuracy(10_000_000, 1 << 23, true); // undersized: slot reuse evicts live keys
+        for (int threads : new int[] {1, 4}) {
+            for (Algorithm algorithm : Algorithm.values()) {
+                benchmark(algorithm, threads, 10_000, 2_000_000);
+            }
+        }
     }
 }
@@ -1,12 +1,41 @@
 package cache.lru;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NavigableSet;
+import java.util.Random;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 public class RoomBooking {
     /*
@@ -31,6 +60,14 @@ public class RoomBooking {
             this.endTime = endTime;
         }
 
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
         public LocalDateTime getStartTime() {
             return startTime;
         }
@@ -45,26 +82,91 @@ public class RoomBooking {
         }
     }
 
+    // told about every booking a room accepts or cancels, while the room is still locked
+    public interface BookingListener {
+        /*
+        Before a booking or a bookAll batch is published, with every room in it locked: the
+        bookings in rooms this listener watches, all in one call. Throwing rejects the whole
+        change and nothing is published, though listeners called earlier have seen it.
+        */
+        default void beforeCommit(List<Reservation> bookings) {
+        }
+
+        /*
+        Once every listener's beforeCommit has accepted the change, still before it is published
+        and with its rooms locked, with the same bookings: where a log records it, so it never
+        records a change another listener vetoes. Throwing still rejects the change.
+        */
+        default void beforePublish(List<Reservation> bookings) {
+        }
+
+        void onBooked(Room room, Event event);
+
+        // before a cancellation is published, with the room locked; throwing leaves the booking in place
+        default void beforeCancel(Room room, Event event) {
+        }
+
+        // the same as beforePublish, for a cancellation every beforeCancel has accepted
+        default void beforePublishCancel(Room room, Event event) {
+        }
+
+        default void onCancelled(Room room, Event event) {
+        }
+
+        // after a change, once the room's lock is released, on the thread that made the change
+        default void afterUnlock(Room room) {
+        }
+    }
+
+    /*
+    Reads far outnumber bookings, so a room's state is a copy-on-write Schedule: a booking or
+    cancellation builds a new one under the lock that serializes changes and publishes it with
+    one volatile write. Readers just read the current Schedule, without locking, and a change is
+    visible to every read that starts after it returns.
+    Free slots are computed per day from a subSet of the day's working hours, so their cost does
+    not grow with the room's history, and cached in the Schedule they were computed from. A new
+    Schedule carries over the cached days its change did not touch.
+    */
     public static class Room {
         private final int id;
         private final String name;
-        private final NavigableSet<Event> bookedEvents;
+        private volatile Schedule schedule;
+        private final List<BookingListener> listeners = new CopyOnWriteArrayList<>();
         // Working hours: 9 AM to 8 PM
         private static final LocalTime WORKING_START = LocalTime.of(9, 0);
         private static final LocalTime WORKING_END = LocalTime.of(20, 0);
+        private static final int MAX_CACHED_DAYS = 400;
         private ReentrantLock lock = new ReentrantLock();
 
+        // never modified once published, apart from free slot lists added to the cache
+        private static final class Schedule {
+            final NavigableSet<Event> bookedEvents;
+            final Map<LocalDate, List<Event>> dayVsFreeSlots;
+
+            Schedule(NavigableSet<Event> bookedEvents, Map<LocalDate, List<Event>> dayVsFreeSlots) {
+                this.bookedEvents = bookedEvents;
+                this.dayVsFreeSlots = dayVsFreeSlots;
+            }
+        }
+
         public Room(int id, String name) {
             this.id = id;
             this.name = name;
-            this.bookedEvents = new TreeSet<>();
+            this.schedule = new Schedule(Collections.unmodifiableNavigableSet(new TreeSet<>()), new ConcurrentHashMap<>());
         }
 
         public void addEvent(Event event) {
             lock.lock();
             try {
                 if (canBeBooked(event.getStartTime(), event.getEndTime())) {
-                    bookedEvents.add(event);
+                    List<Reservation> booking = List.of(new Reservation(this, event));
+                    for (BookingListener listener : listeners) {
+                        listener.beforeCommit(booking);
+                    }
+                    for (BookingListener listener : listeners) {
+                        listener.beforePublish(booking);
+                    }
+                    commit(List.of(event));
                 } else {
                     throw new IllegalArgumentException("Room is already booked during this time.");
                 }
@@ -72,58 +174,1309 @@ public class RoomBooking {
             finally {
                 lock.unlock();
             }
+            afterUnlock();
         }
 
-        public boolean canBeBooked(LocalDateTime startTime, LocalDateTime endTime) {
+        // removes a booking with the same id and start time; false if there is none
+        public boolean cancelEvent(Event event) {
             lock.lock();
             try {
-                Event dummyEvent = new Event(-1, "Dummy", startTime, endTime);
-
-                // Get the nearest event that starts before or overlaps
-                Event lower = bookedEvents.floor(dummyEvent);
-                if (lower != null && lower.getEndTime().isAfter(startTime)) {
+                Event booked = schedule.bookedEvents.ceiling(event);
+                if (booked == null || booked.compareTo(event) != 0 || booked.getId() != event.getId()) {
                     return false;
                 }
-
-                // Get the nearest event that starts after or overlaps
-                Event higher = bookedEvents.ceiling(dummyEvent);
-                if (higher != null && higher.getStartTime().isBefore(endTime)) {
-                    return false;
+                for (BookingListener listener : listeners) {
+                    listener.beforeCancel(this, booked);
+                }
+                for (BookingListener listener : listeners) {
+                    listener.beforePublishCancel(this, booked);
+                }
+                TreeSet<Event> updated = new TreeSet<>(schedule.bookedEvents);
+                updated.remove(booked);
+                publish(updated, List.of(booked));
+                for (BookingListener listener : listeners) {
+                    listener.onCancelled(this, booked);
                 }
-
-                return true;
             }
             finally {
                 lock.unlock();
             }
+            afterUnlock();
+            return true;
+        }
+
+        private void afterUnlock() {
+            for (BookingListener listener : listeners) {
+                listener.afterUnlock(this);
+            }
+        }
+
+        // caller holds the lock and has checked the events are free; one copy of the set for all of them
+        private void commit(Collection<Event> events) {
+            TreeSet<Event> updated = new TreeSet<>(schedule.bookedEvents); // linear: copies from a sorted set
+            updated.addAll(events);
+            publish(updated, events);
+            for (Event event : events) {
+                for (BookingListener listener : listeners) {
+                    listener.onBooked(this, event);
+                }
+            }
+        }
+
+        // caller holds the lock; cached days the changed events overlap are dropped, the rest carried over
+        private void publish(TreeSet<Event> bookedEvents, Collection<Event> changed) {
+            Map<LocalDate, List<Event>> dayVsFreeSlots = new ConcurrentHashMap<>(schedule.dayVsFreeSlots);
+            for (Event event : changed) {
+                LocalDate lastDay = event.getEndTime().toLocalDate();
+                for (LocalDate day = event.getStartTime().toLocalDate(); !day.isAfter(lastDay); day = day.plusDays(1)) {
+                    dayVsFreeSlots.remove(day);
+                }
+            }
+            schedule = new Schedule(Collections.unmodifiableNavigableSet(bookedEvents), dayVsFreeSlots);
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void addListener(BookingListener listener) {
+            listeners.add(listener);
+        }
+
+        // read-only snapshot of every booking, ordered by start time
+        public NavigableSet<Event> getBookedEvents() {
+            return schedule.bookedEvents;
+        }
+
+        public boolean canBeBooked(LocalDateTime startTime, LocalDateTime endTime) {
+            return isFree(schedule.bookedEvents, startTime, endTime);
+        }
+
+        static boolean isFree(NavigableSet<Event> events, LocalDateTime startTime, LocalDateTime endTime) {
+            Event dummyEvent = new Event(-1, "Dummy", startTime, endTime);
+
+            // Get the nearest event that starts before or overlaps
+            Event lower = events.floor(dummyEvent);
+            if (lower != null && lower.getEndTime().isAfter(startTime)) {
+                return false;
+            }
+
+            // Get the nearest event that starts after or overlaps
+            Event higher = events.ceiling(dummyEvent);
+            if (higher != null && higher.getStartTime().isBefore(endTime)) {
+                return false;
+            }
+
+            return true;
         }
 
+        // free slots within working hours on the given day; the list is read-only
         public List<Event> getAvailableTimeSlots(LocalDateTime day) {
-            lock.lock();
-            try {
-                List<Event> availableSlots = new ArrayList<>();
-                LocalDateTime currentStart = LocalDateTime.of(day.toLocalDate(), WORKING_START);
-                LocalDateTime endOfDay = LocalDateTime.of(day.toLocalDate(), WORKING_END);
+            Schedule schedule = this.schedule;
+            List<Event> cached = schedule.dayVsFreeSlots.get(day.toLocalDate());
+            if (cached != null) {
+                return cached;
+            }
+            List<Event> availableSlots = Collections.unmodifiableList(computeFreeSlots(schedule.bookedEvents, day.toLocalDate()));
+            if (schedule.dayVsFreeSlots.size() < MAX_CACHED_DAYS) {
+                schedule.dayVsFreeSlots.put(day.toLocalDate(), availableSlots);
+            }
+            return availableSlots;
+        }
 
-                for (Event event : bookedEvents) {
-                    if (currentStart.isBefore(event.getStartTime())) {
-                        availableSlots.add(new Event(-1, "Available Slot", currentStart, event.getStartTime()));
+        // free slots of at least minDuration within working hours, for every day from firstDay to lastDay
+        public List<Event> getAvailableTimeSlots(LocalDate firstDay, LocalDate lastDay, Duration minDuration) {
+            if (firstDay.isAfter(lastDay)) {
+                throw new IllegalArgumentException("First day must not be after last day.");
+            }
+            List<Event> availableSlots = new ArrayList<>();
+            for (LocalDate day = firstDay; !day.isAfter(lastDay); day = day.plusDays(1)) {
+                for (Event slot : getAvailableTimeSlots(day.atStartOfDay())) {
+                    if (Duration.between(slot.getStartTime(), slot.getEndTime()).compareTo(minDuration) >= 0) {
+                        availableSlots.add(slot);
                     }
+                }
+            }
+            return availableSlots;
+        }
+
+        private static List<Event> computeFreeSlots(NavigableSet<Event> events, LocalDate day) {
+            LocalDateTime dayStart = LocalDateTime.of(day, WORKING_START);
+            LocalDateTime dayEnd = LocalDateTime.of(day, WORKING_END);
+            Event startProbe = new Event(-1, "Probe", dayStart, dayStart);
+            List<Event> availableSlots = new ArrayList<>();
+            LocalDateTime currentStart = dayStart;
+
+            // only the latest event starting before the day can reach into it
+            Event before = events.lower(startProbe);
+            if (before != null && before.getEndTime().isAfter(currentStart)) {
+                currentStart = before.getEndTime();
+            }
+            for (Event event : events.subSet(startProbe, true, new Event(-1, "Probe", dayEnd, dayEnd), false)) {
+                if (currentStart.isBefore(event.getStartTime())) {
+                    availableSlots.add(new Event(-1, "Available Slot", currentStart, event.getStartTime()));
+                }
+                if (event.getEndTime().isAfter(currentStart)) {
                     currentStart = event.getEndTime();
                 }
+            }
+
+            if (currentStart.isBefore(dayEnd)) {
+                availableSlots.add(new Event(-1, "Available Slot", currentStart, dayEnd));
+            }
+
+            return availableSlots;
+        }
+    }
+
+    public static class Reservation {
+        private final Room room;
+        private final Event event;
+
+        public Reservation(Room room, Event event) {
+            this.room = room;
+            this.event = event;
+        }
+
+        public Room getRoom() {
+            return room;
+        }
+
+        public Event getEvent() {
+            return event;
+        }
+    }
+
+    /*
+    Books every reservation or none of them: recurring meetings, or one event across several
+    rooms. The rooms' locks are taken in room id order, which every batch agrees on and
+    addEvent never breaks (it holds a single lock), so batches cannot deadlock. With all of
+    them held, the whole batch is checked against the rooms and against itself before
+    anything is committed, so no other booking can slip in between check and commit. Each
+    listener then gets the batch in one beforeCommit call and, once all of them have accepted
+    it, in one beforePublish call, which a log turns into one record; if any of them throws,
+    no room is changed.
+    Lock-free readers may see the rooms of a batch fill in one at a time while it commits.
+    */
+    public static void bookAll(List<Reservation> reservations) {
+        Map<Integer, Room> idVsRoom = new HashMap<>();
+        Map<Room, List<Event>> roomVsEvents = new TreeMap<>(Comparator.comparingInt(Room::getId));
+        for (Reservation reservation : reservations) {
+            Room room = reservation.getRoom();
+            Room known = idVsRoom.putIfAbsent(room.getId(), room);
+            if (known != null && known != room) {
+                throw new IllegalArgumentException("Two rooms share id " + room.getId() + ".");
+            }
+            roomVsEvents.computeIfAbsent(room, key -> new ArrayList<>()).add(reservation.getEvent());
+        }
+
+        List<Room> locked = new ArrayList<>(roomVsEvents.size());
+        try {
+            for (Room room : roomVsEvents.keySet()) {
+                room.lock.lock();
+                locked.add(room);
+            }
+            for (Map.Entry<Room, List<Event>> entry : roomVsEvents.entrySet()) {
+                List<Event> events = entry.getValue();
+                events.sort(null);
+                for (int i = 0; i < events.size(); i++) {
+                    Event event = events.get(i);
+                    boolean overlapsBatch = i > 0 && events.get(i - 1).getEndTime().isAfter(event.getStartTime());
+                    if (overlapsBatch || !entry.getKey().canBeBooked(event.getStartTime(), event.getEndTime())) {
+                        throw new IllegalArgumentException(entry.getKey().getName() + " is already booked at " + event.getStartTime() + ".");
+                    }
+                }
+            }
+            Map<BookingListener, List<Reservation>> listenerVsBookings = new LinkedHashMap<>();
+            for (Map.Entry<Room, List<Event>> entry : roomVsEvents.entrySet()) {
+                for (BookingListener listener : entry.getKey().listeners) {
+                    for (Event event : entry.getValue()) {
+                        listenerVsBookings.computeIfAbsent(listener, key -> new ArrayList<>()).add(new Reservation(entry.getKey(), event));
+                    }
+                }
+            }
+            for (Map.Entry<BookingListener, List<Reservation>> entry : listenerVsBookings.entrySet()) {
+                entry.getKey().beforeCommit(entry.getValue());
+            }
+            for (Map.Entry<BookingListener, List<Reservation>> entry : listenerVsBookings.entrySet()) {
+                entry.getKey().beforePublish(entry.getValue());
+            }
+            for (Map.Entry<Room, List<Event>> entry : roomVsEvents.entrySet()) {
+                entry.getKey().commit(entry.getValue());
+            }
+        }
+        finally {
+            for (int i = locked.size() - 1; i >= 0; i--) {
+                locked.get(i).lock.unlock();
+            }
+        }
+        for (Room room : roomVsEvents.keySet()) {
+            room.afterUnlock();
+        }
+    }
+
+    /*
+    Building-wide availability index. For every day that has bookings it keeps, per 15-minute
+    slot, a bitmap over rooms (bit r set = room r is busy at some point in that slot), so
+    "which rooms are free from 14:00 to 15:00" is an OR of four slot bitmaps and a scan for
+    zero bits: 64 rooms per word operation, no per-room locking or allocation.
+    A slot counts as busy if any booking overlaps it, so once a booking call has returned the
+    index never reports that room as free. A search running while the booking is being made can
+    still report it free: the room publishes the booking before the index hears of it. That is
+    the answer the search would have given just before the booking. Only a query that starts
+    or ends inside a slot can be unsure about a room whose one busy slot is a partial one at the
+    edge of the query; those few rooms are checked exactly.
+    Only today and later are indexed. The first booking each day drops the days that have
+    passed, so the map holds just the days ahead that have bookings. Queries that start before
+    today check every room exactly.
+    Rooms must be registered here before they are booked, or are indexed when registered.
+    */
+    public static class RoomDirectory implements BookingListener {
+        static final int SLOT_MINUTES = 15;
+        static final int SLOTS_PER_DAY = 24 * 60 / SLOT_MINUTES;
+
+        private final int maxRooms;
+        private final int words;
+        private final Room[] rooms;
+        private volatile int roomCount;
+        private final Map<Integer, Integer> roomIdVsIndex = new ConcurrentHashMap<>();
+        private final Map<LocalDate, AtomicLongArray[]> dayVsBusySlots = new ConcurrentHashMap<>();
+        private final Clock clock;
+        private volatile LocalDate indexedFrom; // days before it are dropped, or about to be
+
+        public RoomDirectory(int maxRooms) {
+            this(maxRooms, Clock.systemDefaultZone());
+        }
+
+        // the clock says what today is, and so which days can be dropped
+        public RoomDirectory(int maxRooms, Clock clock) {
+            if (maxRooms <= 0) {
+                throw new IllegalArgumentException("Room capacity must be positive.");
+            }
+            this.maxRooms = maxRooms;
+            this.words = (maxRooms + 63) / 64;
+            this.rooms = new Room[maxRooms];
+            this.clock = clock;
+            this.indexedFrom = LocalDate.now(clock);
+        }
+
+        public synchronized void addRoom(Room room) {
+            if (roomIdVsIndex.containsKey(room.getId())) {
+                throw new IllegalArgumentException("Room " + room.getId() + " is already registered.");
+            }
+            if (roomCount == maxRooms) {
+                throw new IllegalStateException("Directory is full (" + maxRooms + " rooms).");
+            }
+            room.lock.lock();
+            try {
+                roomIdVsIndex.put(room.getId(), roomCount);
+                rooms[roomCount] = room;
+                roomCount++; // publishes the slot above to searches
+                for (Event event : room.getBookedEvents()) {
+                    onBooked(room, event);
+                }
+                room.addListener(this);
+            }
+            finally {
+                room.lock.unlock();
+            }
+        }
+
+        public Room getRoom(int roomId) {
+            Integer index = roomIdVsIndex.get(roomId);
+            return index == null ? null : rooms[index];
+        }
+
+        @Override
+        public void onBooked(Room room, Event event) {
+            dropPastDays();
+            long bit = 1L << (roomIdVsIndex.get(room.getId()) & 63);
+            int word = roomIdVsIndex.get(room.getId()) >>> 6;
+            forEachSlot(event.getStartTime(), event.getEndTime(), true, (slots, from, to) -> {
+                for (int slot = from; slot < to; slot++) {
+                    slots[slot].accumulateAndGet(word, bit, (current, mask) -> current | mask);
+                }
+            });
+        }
 
-                if (currentStart.isBefore(endOfDay)) {
-                    availableSlots.add(new Event(-1, "Available Slot", currentStart, endOfDay));
+        // a slot is cleared only once no remaining booking of the room overlaps it, so it is never briefly free while busy
+        @Override
+        public void onCancelled(Room room, Event event) {
+            int index = roomIdVsIndex.get(room.getId());
+            LocalDateTime slotStart = event.getStartTime().truncatedTo(ChronoUnit.MINUTES)
+                    .withMinute(event.getStartTime().getMinute() / SLOT_MINUTES * SLOT_MINUTES);
+            for (; slotStart.isBefore(event.getEndTime()); slotStart = slotStart.plusMinutes(SLOT_MINUTES)) {
+                AtomicLongArray[] slots = dayVsBusySlots.get(slotStart.toLocalDate());
+                if (slots != null && room.canBeBooked(slotStart, slotStart.plusMinutes(SLOT_MINUTES))) {
+                    slots[minuteOfDay(slotStart) / SLOT_MINUTES].accumulateAndGet(index >>> 6, ~(1L << (index & 63)), (current, mask) -> current & mask);
                 }
+            }
+        }
 
-                return availableSlots;
-            } finally {
-                lock.unlock();
+        // moves indexedFrom before removing, so a search that misses a removed day also sees it is no longer indexed
+        private void dropPastDays() {
+            LocalDate today = LocalDate.now(clock);
+            if (today.isAfter(indexedFrom)) {
+                indexedFrom = today;
+                dayVsBusySlots.keySet().removeIf(day -> day.isBefore(today));
+            }
+        }
+
+        public int getIndexedDays() {
+            return dayVsBusySlots.size();
+        }
+
+        public List<Room> findFreeRooms(LocalDateTime startTime, LocalDateTime endTime) {
+            List<Room> free = new ArrayList<>();
+            search(startTime, endTime, free, Integer.MAX_VALUE);
+            return free;
+        }
+
+        // first free room in registration order, or null
+        public Room findAnyFreeRoom(LocalDateTime startTime, LocalDateTime endTime) {
+            List<Room> free = new ArrayList<>(1);
+            search(startTime, endTime, free, 1);
+            return free.isEmpty() ? null : free.get(0);
+        }
+
+        private void search(LocalDateTime startTime, LocalDateTime endTime, List<Room> result, int limit) {
+            if (!startTime.isBefore(endTime)) {
+                throw new IllegalArgumentException("Start time must be before end time.");
+            }
+            // slot ranges touching the query, and the ones it covers completely
+            List<AtomicLongArray> touched = new ArrayList<>();
+            List<AtomicLongArray> covered = new ArrayList<>();
+            forEachSlot(startTime, endTime, false, (slots, from, to) -> touched.addAll(Arrays.asList(slots).subList(from, to)));
+            forEachInnerSlot(startTime, endTime, (slots, from, to) -> covered.addAll(Arrays.asList(slots).subList(from, to)));
+            int roomCount = this.roomCount;
+            if (startTime.toLocalDate().isBefore(indexedFrom)) {
+                for (int r = 0; r < roomCount && result.size() < limit; r++) {
+                    if (rooms[r].canBeBooked(startTime, endTime)) {
+                        result.add(rooms[r]);
+                    }
+                }
+                return;
+            }
+            // word by word, so a search for any one room stops at the first word with a free room
+            for (int w = 0; w << 6 < roomCount && result.size() < limit; w++) {
+                long busy = 0;
+                for (AtomicLongArray slot : touched) {
+                    busy |= slot.get(w);
+                }
+                long sure = 0; // busy in a slot fully inside the query
+                if (busy != 0) {
+                    for (AtomicLongArray slot : covered) {
+                        sure |= slot.get(w);
+                    }
+                }
+                long live = roomCount - (w << 6) >= 64 ? -1L : (1L << (roomCount & 63)) - 1;
+                long free = ~busy & live;
+                long unsure = busy & ~sure & live;
+                // free and unsure rooms in index order, so limit picks the same room a scan would
+                for (long candidates = free | unsure; candidates != 0 && result.size() < limit; candidates &= candidates - 1) {
+                    int bit = Long.numberOfTrailingZeros(candidates);
+                    Room room = rooms[w << 6 | bit];
+                    if ((free & 1L << bit) != 0 || room.canBeBooked(startTime, endTime)) {
+                        result.add(room);
+                    }
+                }
+            }
+        }
+
+        interface SlotRange {
+            void accept(AtomicLongArray[] slots, int from, int to);
+        }
+
+        // every slot the interval touches, day by day; days without bookings are skipped unless create, past days when it is
+        private void forEachSlot(LocalDateTime startTime, LocalDateTime endTime, boolean create, SlotRange action) {
+            LocalDate day = startTime.toLocalDate();
+            LocalDate lastDay = endTime.minusNanos(1).toLocalDate();
+            if (create && day.isBefore(indexedFrom)) {
+                day = indexedFrom;
+            }
+            for (; !day.isAfter(lastDay); day = day.plusDays(1)) {
+                AtomicLongArray[] slots = create ? dayVsBusySlots.computeIfAbsent(day, this::newDay) : dayVsBusySlots.get(day);
+                if (slots == null) {
+                    continue;
+                }
+                int from = day.equals(startTime.toLocalDate()) ? minuteOfDay(startTime) / SLOT_MINUTES : 0;
+                int to = day.equals(lastDay) ? (minuteOfDay(endTime.minusNanos(1)) / SLOT_MINUTES) + 1 : SLOTS_PER_DAY;
+                action.accept(slots, from, to);
+            }
+        }
+
+        // only the slots the interval covers completely
+        private void forEachInnerSlot(LocalDateTime startTime, LocalDateTime endTime, SlotRange action) {
+            LocalDateTime innerStart = ceilToSlot(startTime);
+            LocalDateTime innerEnd = endTime.truncatedTo(ChronoUnit.MINUTES).withMinute(endTime.getMinute() / SLOT_MINUTES * SLOT_MINUTES);
+            if (innerStart.isBefore(innerEnd)) {
+                forEachSlot(innerStart, innerEnd, false, action);
+            }
+        }
+
+        private static LocalDateTime ceilToSlot(LocalDateTime time) {
+            LocalDateTime floor = time.truncatedTo(ChronoUnit.MINUTES).withMinute(time.getMinute() / SLOT_MINUTES * SLOT_MINUTES);
+            return floor.equals(time) ? floor : floor.plusMinutes(SLOT_MINUTES);
+        }
+
+        private static int minuteOfDay(LocalDateTime time) {
+            return time.getHour() * 60 + time.getMinute();
+        }
+
+        private AtomicLongArray[] newDay(LocalDate day) {
+            AtomicLongArray[] slots = new AtomicLongArray[SLOTS_PER_DAY];
+            for (int slot = 0; slot < SLOTS_PER_DAY; slot++) {
+                slots[slot] = new AtomicLongArray(words);
+            }
+            return slots;
+        }
+    }
+
+    /*
+    Rooms and their bookings kept across restarts through a WriteAheadLog. Bookings and
+    cancellations are both logged before their room publishes them, once every other listener
+    has accepted them and while the room is still locked, and the room waits for the record to
+    reach the disk before publishing. So a room's log order is its change order, a change the
+    log refuses or fails to write is never published, and addEvent, cancelEvent and bookAll
+    return only once the change is on disk.
+    Holding the lock through the fsync only delays other changes to the same rooms: readers do
+    not lock, and changes to other rooms still share the fsync.
+    A bookAll batch is one record, so a crash keeps all of it or none of it. The snapshot reads
+    each room under its lock, so it cannot miss a change logged before the snapshot started.
+    Recovery rebuilds each room's bookings in a plain TreeSet and publishes it once, instead of
+    copying the room's snapshot for every replayed record. Replay skips a booking the room
+    already has or that clashes with a later one, and a cancel of a booking it does not have,
+    so the tail after a fuzzy snapshot replays cleanly. A batch is replayed room by room the
+    same way: every logged batch was accepted, so a clash in one room only means the snapshot
+    read that room after a later change, and the batch's other rooms are still booked.
+    */
+    public static class BookingLog implements BookingListener, WriteAheadLog.Encoder, AutoCloseable {
+        private static final byte ROOM_ADDED = 1;
+        private static final byte EVENT_BOOKED = 2;
+        private static final byte EVENT_CANCELLED = 3;
+        private static final byte BATCH_BOOKED = 4;
+
+        private final Map<Integer, Room> rooms = new ConcurrentHashMap<>();
+        private final Map<Integer, String> recoveredNames = new TreeMap<>();
+        private final Map<Integer, TreeSet<Event>> recoveredEvents = new HashMap<>();
+        private final WriteAheadLog log;
+
+        // snapshotIntervalMillis <= 0 leaves snapshots to explicit checkpoint calls
+        public BookingLog(Path directory, long snapshotIntervalMillis) throws IOException {
+            this.log = new WriteAheadLog(directory, this::readSnapshot, this::replay, this);
+            for (Map.Entry<Integer, String> entry : recoveredNames.entrySet()) {
+                Room room = new Room(entry.getKey(), entry.getValue());
+                room.lock.lock();
+                try {
+                    room.commit(recoveredEvents.get(entry.getKey())); // sorted, so copied in linear time
+                }
+                finally {
+                    room.lock.unlock();
+                }
+                room.addListener(this);
+                rooms.put(room.getId(), room);
+            }
+            recoveredNames.clear();
+            recoveredEvents.clear();
+            if (snapshotIntervalMillis > 0) {
+                log.scheduleSnapshots(snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        // synchronized with snapshots, so a room is in either the snapshot or the log after it;
+        // logged first, so a room the log fails to write is not added
+        public synchronized Room addRoom(int id, String name) {
+            if (rooms.containsKey(id)) {
+                throw new IllegalArgumentException("Room " + id + " already exists.");
+            }
+            log.append(ROOM_ADDED, out -> {
+                out.writeInt(id);
+                WriteAheadLog.writeString(out, name);
+            }).join();
+            Room room = new Room(id, name);
+            room.addListener(this);
+            rooms.put(id, room);
+            return room;
+        }
+
+        public Room getRoom(int id) {
+            return rooms.get(id);
+        }
+
+        public List<Room> getRooms() {
+            List<Room> sorted = new ArrayList<>(rooms.values());
+            sorted.sort(Comparator.comparingInt(Room::getId));
+            return sorted;
+        }
+
+        public void checkpoint() throws IOException {
+            log.checkpoint();
+        }
+
+        public WriteAheadLog getLog() {
+            return log;
+        }
+
+        @Override
+        public void beforePublish(List<Reservation> bookings) {
+            if (bookings.size() == 1) {
+                log.append(EVENT_BOOKED, out -> {
+                    out.writeInt(bookings.get(0).getRoom().getId());
+                    writeEvent(out, bookings.get(0).getEvent());
+                }).join();
+                return;
             }
+            log.append(BATCH_BOOKED, out -> {
+                out.writeInt(bookings.size());
+                for (Reservation booking : bookings) {
+                    out.writeInt(booking.getRoom().getId());
+                    writeEvent(out, booking.getEvent());
+                }
+            }).join();
+        }
+
+        // already logged by beforePublish
+        @Override
+        public void onBooked(Room room, Event event) {
+        }
+
+        @Override
+        public void beforePublishCancel(Room room, Event event) {
+            log.append(EVENT_CANCELLED, out -> {
+                out.writeInt(room.getId());
+                out.writeInt(event.getId());
+                writeTime(out, event.getStartTime());
+            }).join();
+        }
+
+        // the snapshot: every room with its bookings, read from the rooms' current schedules
+        @Override
+        public synchronized void write(DataOutputStream out) throws IOException {
+            List<Room> sorted = getRooms();
+            out.writeInt(sorted.size());
+            for (Room room : sorted) {
+                out.writeInt(room.getId());
+                WriteAheadLog.writeString(out, room.getName());
+                NavigableSet<Event> events;
+                room.lock.lock(); // a booking is logged and published under this lock
+                try {
+                    events = room.getBookedEvents();
+                }
+                finally {
+                    room.lock.unlock();
+                }
+                out.writeInt(events.size());
+                for (Event event : events) {
+                    writeEvent(out, event);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            log.close();
+        }
+
+        private void readSnapshot(ByteBuffer in) {
+            for (int rooms = in.getInt(); rooms > 0; rooms--) {
+                int id = in.getInt();
+                recoveredNames.put(id, WriteAheadLog.readString(in));
+                TreeSet<Event> events = new TreeSet<>();
+                for (int count = in.getInt(); count > 0; count--) {
+                    events.add(readEvent(in));
+                }
+                recoveredEvents.put(id, events);
+            }
+        }
+
+        private void replay(byte type, ByteBuffer in) {
+            if (type == BATCH_BOOKED) {
+                replayBatch(in);
+                return;
+            }
+            int roomId = in.getInt();
+            switch (type) {
+                case ROOM_ADDED:
+                    if (recoveredNames.putIfAbsent(roomId, WriteAheadLog.readString(in)) == null) {
+                        recoveredEvents.put(roomId, new TreeSet<>());
+                    }
+                    break;
+                case EVENT_BOOKED: {
+                    Event event = readEvent(in);
+                    TreeSet<Event> events = recoveredEvents.get(roomId);
+                    if (events != null && Room.isFree(events, event.getStartTime(), event.getEndTime())) {
+                        events.add(event);
+                    }
+                    break;
+                }
+                case EVENT_CANCELLED: {
+                    int eventId = in.getInt();
+                    LocalDateTime startTime = readTime(in);
+                    TreeSet<Event> events = recoveredEvents.get(roomId);
+                    Event booked = events == null ? null : events.ceiling(new Event(-1, "Probe", startTime, startTime));
+                    if (booked != null && booked.getStartTime().equals(startTime) && booked.getId() == eventId) {
+                        events.remove(booked);
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown booking record type " + type);
+            }
+        }
+
+        // a fuzzy snapshot may hold some rooms of the batch already, or a later state of them; each booking is replayed as EVENT_BOOKED
+        private void replayBatch(ByteBuffer in) {
+            for (int count = in.getInt(); count > 0; count--) {
+                TreeSet<Event> events = recoveredEvents.get(in.getInt());
+                Event event = readEvent(in);
+                if (events != null && Room.isFree(events, event.getStartTime(), event.getEndTime())) {
+                    events.add(event);
+                }
+            }
+        }
+
+        private static void writeEvent(DataOutputStream out, Event event) throws IOException {
+            out.writeInt(event.getId());
+            WriteAheadLog.writeString(out, event.getName());
+            writeTime(out, event.getStartTime());
+            writeTime(out, event.getEndTime());
+        }
+
+        private static Event readEvent(ByteBuffer in) {
+            int id = in.getInt();
+            String name = WriteAheadLog.readString(in);
+            LocalDateTime startTime = readTime(in);
+            return new Event(id, name, startTime, readTime(in));
+        }
+
+        private static void writeTime(DataOutputStream out, LocalDateTime time) throws IOException {
+            out.writeLong(time.toEpochSecond(ZoneOffset.UTC));
+            out.writeInt(time.getNano());
+        }
+
+        private static LocalDateTime readTime(ByteBuffer in) {
+            long seconds = in.getLong();
+            return LocalDateTime.ofEpochSecond(seconds, in.getInt(), ZoneOffset.UTC);
+        }
+    }
+
+    // the benchmarks book simulated dates, which the directory must treat as today or later
+    static Clock fixedClock(LocalDate today) {
+        return Clock.fixed(today.atStartOfDay(ZoneOffset.UTC).toInstant(), ZoneOffset.UTC);
+    }
+
+    // many rooms, half booked solid, the rest with random meetings: free-room queries by scanning rooms vs through the index
+    static void directoryBenchmark(int roomCount, int days) {
+        LocalDate firstDay = LocalDate.of(2025, 2, 3);
+        RoomDirectory directory = new RoomDirectory(roomCount, fixedClock(firstDay));
+        List<Room> rooms = new ArrayList<>();
+        Random random = new Random(11);
+        int eventId = 0;
+        for (int r = 0; r < roomCount; r++) {
+            Room room = new Room(r, "Room " + r);
+            directory.addRoom(room);
+            rooms.add(room);
+            for (int d = 0; d < days; d++) {
+                // the first half are popular rooms, booked solid through working hours
+                if (r < roomCount / 2) {
+                    LocalDateTime dayStart = LocalDateTime.of(firstDay.plusDays(d), LocalTime.of(9, 0));
+                    room.addEvent(new Event(eventId++, "All hands", dayStart, dayStart.plusHours(11)));
+                    continue;
+                }
+                // the rest have a few meetings per day at 15-minute aligned and unaligned times
+                for (int m = 0; m < 4; m++) {
+                    LocalDateTime start = LocalDateTime.of(firstDay.plusDays(d), LocalTime.of(9, 0)).plusMinutes(random.nextInt(660 / 5) * 5);
+                    LocalDateTime end = start.plusMinutes(30 + random.nextInt(4) * 15);
+                    if (room.canBeBooked(start, end)) {
+                        room.addEvent(new Event(eventId++, "Meeting", start, end));
+                    }
+                }
+            }
+        }
+        for (int round = 0; round < 24; round++) {
+            int queries = 0;
+            long scanNanos = 0;
+            long indexNanos = 0;
+            long anyScanNanos = 0;
+            long anyIndexNanos = 0;
+            for (int d = 0; d < days; d++) {
+                for (int hour = 9; hour < 19; hour++) {
+                    LocalDateTime start = LocalDateTime.of(firstDay.plusDays(d), LocalTime.of(hour, round % 2 == 0 ? 10 : 0));
+                    LocalDateTime end = start.plusHours(1);
+                    long begin = System.nanoTime();
+                    List<Room> scanned = new ArrayList<>();
+                    for (Room room : rooms) {
+                        if (room.canBeBooked(start, end)) {
+                            scanned.add(room);
+                        }
+                    }
+                    scanNanos += System.nanoTime() - begin;
+                    begin = System.nanoTime();
+                    List<Room> indexed = directory.findFreeRooms(start, end);
+                    indexNanos += System.nanoTime() - begin;
+                    if (!scanned.equals(indexed)) {
+                        throw new IllegalStateException("Index disagrees with scan for " + start);
+                    }
+
+                    // the common question: any one free room, with the popular rooms first in the list
+                    LocalDateTime busyStart = start.withMinute(round % 2 == 0 ? 5 : 0);
+                    begin = System.nanoTime();
+                    Room anyScanned = null;
+                    for (Room room : rooms) {
+                        if (room.canBeBooked(busyStart, end)) {
+                            anyScanned = room;
+                            break;
+                        }
+                    }
+                    anyScanNanos += System.nanoTime() - begin;
+                    begin = System.nanoTime();
+                    Room anyIndexed = directory.findAnyFreeRoom(busyStart, end);
+                    anyIndexNanos += System.nanoTime() - begin;
+                    if (anyScanned != anyIndexed) {
+                        throw new IllegalStateException("Index found a different first free room for " + busyStart);
+                    }
+                    queries++;
+                }
+            }
+            if (round >= 22) { // earlier rounds warm up
+                System.out.printf("%,d rooms, %-9s all free rooms: scan %,6d us, index %,6d us | any free room: scan %,6d ns, index %,6d ns%n",
+                        roomCount, round % 2 == 0 ? "unaligned" : "aligned", scanNanos / queries / 1000, indexNanos / queries / 1000,
+                        anyScanNanos / queries, anyIndexNanos / queries);
+            }
+        }
+    }
+
+    // every booking that overlaps the day's working hours, found by walking the whole history
+    private static List<Event> freeSlotsByFullWalk(Room room, LocalDate day) {
+        LocalDateTime currentStart = LocalDateTime.of(day, LocalTime.of(9, 0));
+        LocalDateTime endOfDay = LocalDateTime.of(day, LocalTime.of(20, 0));
+        List<Event> availableSlots = new ArrayList<>();
+        for (Event event : room.getBookedEvents()) {
+            if (!event.getEndTime().isAfter(currentStart) || !event.getStartTime().isBefore(endOfDay)) {
+                continue;
+            }
+            if (currentStart.isBefore(event.getStartTime())) {
+                availableSlots.add(new Event(-1, "Available Slot", currentStart, event.getStartTime()));
+            }
+            currentStart = event.getEndTime();
+        }
+        if (currentStart.isBefore(endOfDay)) {
+            availableSlots.add(new Event(-1, "Available Slot", currentStart, endOfDay));
+        }
+        return availableSlots;
+    }
+
+    private static boolean sameSlots(List<Event> a, List<Event> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (!a.get(i).getStartTime().equals(b.get(i).getStartTime()) || !a.get(i).getEndTime().equals(b.get(i).getEndTime())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    Rooms with years of history, including overnight bookings, take random bookings and
+    cancellations; every day's free slots are checked against a walk over the whole history and
+    the directory against a scan. Then the cost of one day's free slots, by history size.
+    */
+    static void freeSlotsBenchmark() {
+        Random random = new Random(23);
+        LocalDate firstDay = LocalDate.of(2020, 1, 1);
+        RoomDirectory directory = new RoomDirectory(8, fixedClock(firstDay));
+        List<Room> rooms = new ArrayList<>();
+        for (int r = 0; r < 8; r++) {
+            Room room = new Room(r, "Room " + r);
+            directory.addRoom(room);
+            rooms.add(room);
+        }
+        List<Event> booked = new ArrayList<>();
+        int eventId = 0;
+        for (int op = 0; op < 20_000; op++) {
+            Room room = rooms.get(random.nextInt(rooms.size()));
+            LocalDate day = firstDay.plusDays(random.nextInt(60));
+            if (op % 3 == 2 && !booked.isEmpty()) {
+                Event event = booked.remove(random.nextInt(booked.size()));
+                for (Room owner : rooms) {
+                    owner.cancelEvent(event);
+                }
+            }
+            else {
+                LocalDateTime start = day.atTime(7, 0).plusMinutes(random.nextInt(15 * 12) * 5);
+                LocalDateTime end = start.plusMinutes(random.nextInt(10) == 0 ? 60 * 12 : 15 + random.nextInt(12) * 5);
+                if (room.canBeBooked(start, end)) {
+                    Event event = new Event(eventId++, "Meeting", start, end);
+                    room.addEvent(event);
+                    booked.add(event);
+                }
+            }
+            Room checked = rooms.get(random.nextInt(rooms.size()));
+            LocalDate checkedDay = firstDay.plusDays(random.nextInt(60));
+            if (!sameSlots(checked.getAvailableTimeSlots(checkedDay.atStartOfDay()), freeSlotsByFullWalk(checked, checkedDay))) {
+                throw new IllegalStateException("Free slots of " + checked.getName() + " on " + checkedDay + " are wrong");
+            }
+            LocalDateTime queryStart = checkedDay.atTime(8, 0).plusMinutes(random.nextInt(12 * 12) * 5);
+            List<Room> scanned = new ArrayList<>();
+            for (Room candidate : rooms) {
+                if (candidate.canBeBooked(queryStart, queryStart.plusMinutes(45))) {
+                    scanned.add(candidate);
+                }
+            }
+            if (!scanned.equals(directory.findFreeRooms(queryStart, queryStart.plusMinutes(45)))) {
+                throw new IllegalStateException("Directory disagrees with scan after cancellations at " + queryStart);
+            }
+        }
+        List<Event> longSlots = rooms.get(0).getAvailableTimeSlots(firstDay, firstDay.plusDays(6), Duration.ofHours(2));
+        System.out.println("Free slots checked; room 0 has " + longSlots.size() + " slots of 2h+ in the first week");
+
+        for (int days : new int[] {100, 10_000}) {
+            Room room = new Room(100, "Archive Room");
+            for (int d = 0; d < days; d++) {
+                for (int hour = 9; hour < 19; hour += 2) {
+                    LocalDateTime start = firstDay.plusDays(d).atTime(hour, 0);
+                    room.addEvent(new Event(eventId++, "Meeting", start, start.plusMinutes(45)));
+                }
+            }
+            LocalDate lastDay = firstDay.plusDays(days - 1);
+            int queries = 2_000;
+            long walkNanos = 0;
+            long uncachedNanos = 0;
+            long cachedNanos = 0;
+            for (int round = 0; round < 3; round++) { // the first two warm up
+                walkNanos = 0;
+                uncachedNanos = 0;
+                cachedNanos = 0;
+                for (int q = 0; q < queries; q++) {
+                    LocalDate day = lastDay.minusDays(q % 50);
+                    long begin = System.nanoTime();
+                    freeSlotsByFullWalk(room, day);
+                    walkNanos += System.nanoTime() - begin;
+                    // a cancel and rebook of one meeting invalidates that day only
+                    Event meeting = room.getBookedEvents().ceiling(new Event(-1, "Probe", day.atTime(9, 0), day.atTime(9, 0)));
+                    room.cancelEvent(meeting);
+                    room.addEvent(meeting);
+                    begin = System.nanoTime();
+                    room.getAvailableTimeSlots(day.atStartOfDay());
+                    uncachedNanos += System.nanoTime() - begin;
+                    begin = System.nanoTime();
+                    room.getAvailableTimeSlots(day.atStartOfDay());
+                    cachedNanos += System.nanoTime() - begin;
+                }
+            }
+            System.out.printf("%,7d bookings: full walk %,9d ns, subSet %,6d ns, cached %,4d ns per day%n",
+                    room.getBookedEvents().size(), walkNanos / queries, uncachedNanos / queries, cachedNanos / queries);
+        }
+    }
+
+    /*
+    Threads book recurring multi-room batches while others book single meetings into the same
+    rooms. Afterwards no room may hold overlapping bookings, every accepted batch must be fully
+    booked and every rejected one not at all. A deadlock shows up as threads that never finish.
+    */
+    static void batchStressTest(int batchThreads, int singleThreads, int seconds) throws InterruptedException {
+        List<Room> rooms = new ArrayList<>();
+        LocalDate firstDay = LocalDate.of(2025, 3, 3);
+        RoomDirectory directory = new RoomDirectory(8, fixedClock(firstDay));
+        for (int r = 0; r < 8; r++) {
+            Room room = new Room(r, "Room " + r);
+            directory.addRoom(room);
+            rooms.add(room);
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong eventIds = new AtomicLong();
+        List<List<Reservation>> accepted = Collections.synchronizedList(new ArrayList<>());
+        List<List<Reservation>> rejected = Collections.synchronizedList(new ArrayList<>());
+        AtomicLong singles = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < batchThreads + singleThreads; t++) {
+            boolean batches = t < batchThreads;
+            int seed = t;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                while (running.get()) {
+                    LocalDateTime start = firstDay.plusDays(random.nextInt(90)).atTime(9, 0).plusMinutes(random.nextInt(120) * 5);
+                    LocalDateTime end = start.plusMinutes(15 + random.nextInt(8) * 15);
+                    if (!batches) {
+                        try {
+                            rooms.get(random.nextInt(rooms.size())).addEvent(new Event((int) eventIds.incrementAndGet(), "Meeting", start, end));
+                            singles.incrementAndGet();
+                        }
+                        catch (IllegalArgumentException ex) {
+                            // taken
+                        }
+                        continue;
+                    }
+                    // the same slot in a few rooms, repeated daily, with rooms listed in random order
+                    List<Reservation> batch = new ArrayList<>();
+                    List<Room> shuffled = new ArrayList<>(rooms);
+                    Collections.shuffle(shuffled, random);
+                    int occurrences = 1 + random.nextInt(4);
+                    for (Room room : shuffled.subList(0, 1 + random.nextInt(3))) {
+                        for (int o = 0; o < occurrences; o++) {
+                            batch.add(new Reservation(room, new Event((int) eventIds.incrementAndGet(), "Series", start.plusDays(o), end.plusDays(o))));
+                        }
+                    }
+                    try {
+                        bookAll(batch);
+                        accepted.add(batch);
+                    }
+                    catch (IllegalArgumentException ex) {
+                        rejected.add(batch);
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join(10_000);
+            if (thread.isAlive()) {
+                throw new IllegalStateException("Booking thread did not finish: deadlock?");
+            }
+        }
+
+        for (Room room : rooms) {
+            Event previous = null;
+            for (Event event : room.getBookedEvents()) {
+                if (previous != null && previous.getEndTime().isAfter(event.getStartTime())) {
+                    throw new IllegalStateException("Double booking in " + room.getName() + " at " + event.getStartTime());
+                }
+                previous = event;
+            }
+        }
+        for (List<Reservation> batch : accepted) {
+            for (Reservation reservation : batch) {
+                if (reservation.getRoom().getBookedEvents().ceiling(reservation.getEvent()) != reservation.getEvent()) {
+                    throw new IllegalStateException("Accepted batch is missing a booking");
+                }
+            }
+        }
+        for (List<Reservation> batch : rejected) {
+            for (Reservation reservation : batch) {
+                if (reservation.getRoom().getBookedEvents().ceiling(reservation.getEvent()) == reservation.getEvent()) {
+                    throw new IllegalStateException("Rejected batch left a booking behind");
+                }
+            }
+        }
+        for (int d = 0; d < 93; d++) {
+            for (int minute = 0; minute < 660; minute += 20) {
+                LocalDateTime start = firstDay.plusDays(d).atTime(9, 0).plusMinutes(minute);
+                List<Room> scanned = new ArrayList<>();
+                for (Room room : rooms) {
+                    if (room.canBeBooked(start, start.plusMinutes(25))) {
+                        scanned.add(room);
+                    }
+                }
+                if (!scanned.equals(directory.findFreeRooms(start, start.plusMinutes(25)))) {
+                    throw new IllegalStateException("Directory disagrees with scan at " + start);
+                }
+            }
+        }
+        System.out.printf("Batch stress: %,d batches accepted, %,d rejected, %,d single bookings, no double bookings%n",
+                accepted.size(), rejected.size(), singles.get());
+    }
+
+    // every room's bookings as text, to compare state before a restart with state after it
+    private static List<String> describe(BookingLog store) {
+        List<String> lines = new ArrayList<>();
+        for (Room room : store.getRooms()) {
+            for (Event event : room.getBookedEvents()) {
+                lines.add(room.getId() + " " + event.getId() + " " + event.getName() + " " + event.getStartTime() + " " + event.getEndTime());
+            }
+        }
+        return lines;
+    }
+
+    // threads book and cancel at random; returns how many changes went through
+    private static long bookingLoad(BookingLog store, int threads, int operations, AtomicLong eventIds) throws InterruptedException {
+        AtomicLong changes = new AtomicLong();
+        List<Thread> workers = new ArrayList<>();
+        LocalDate firstDay = LocalDate.of(2025, 1, 1);
+        for (int t = 0; t < threads; t++) {
+            int seed = t;
+            workers.add(new Thread(() -> {
+                Random random = new Random(seed * 31L + eventIds.get());
+                List<Room> rooms = store.getRooms();
+                for (int i = 0; i < operations; i++) {
+                    Room room = rooms.get(random.nextInt(rooms.size()));
+                    LocalDateTime start = firstDay.plusDays(random.nextInt(365)).atTime(9, 0).plusMinutes(random.nextInt(44) * 15);
+                    if (i % 4 == 3) {
+                        Event booked = room.getBookedEvents().floor(new Event(-1, "Probe", start, start));
+                        if (booked != null && room.cancelEvent(booked)) {
+                            changes.incrementAndGet();
+                        }
+                        continue;
+                    }
+                    // now and then the same meeting in two rooms, logged as one batch
+                    Room other = rooms.get(random.nextInt(rooms.size()));
+                    if (i % 8 == 5 && other != room) {
+                        LocalDateTime end = start.plusMinutes(30);
+                        try {
+                            bookAll(List.of(new Reservation(room, new Event((int) eventIds.incrementAndGet(), "Joint", start, end)),
+                                    new Reservation(other, new Event((int) eventIds.incrementAndGet(), "Joint", start, end))));
+                            changes.incrementAndGet();
+                        }
+                        catch (IllegalArgumentException ex) {
+                            // taken
+                        }
+                        continue;
+                    }
+                    try {
+                        room.addEvent(new Event((int) eventIds.incrementAndGet(), "Meeting", start, start.plusMinutes(15 + random.nextInt(4) * 15)));
+                        changes.incrementAndGet();
+                    }
+                    catch (IllegalArgumentException ex) {
+                        // taken
+                    }
+                }
+            }));
+        }
+        workers.forEach(Thread::start);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return changes.get();
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    /*
+    Group commit: threads book concurrently and every change is on disk before its call
+    returns; the log reports how many records each fsync carried. Then restart cost: a store
+    that checkpointed recovers from its snapshot plus a short tail, one that never did replays
+    its whole log; both must come back exactly as they were, also after a torn final record.
+    */
+    static void durabilityBenchmark(int rooms, int threads, int operations) throws IOException, InterruptedException {
+        Path snapshotted = Files.createTempDirectory("room-wal-snapshot");
+        Path logOnly = Files.createTempDirectory("room-wal-log");
+        AtomicLong eventIds = new AtomicLong();
+        for (Path directory : new Path[] {snapshotted, logOnly}) {
+            List<String> before;
+            try (BookingLog store = new BookingLog(directory, 0)) {
+                for (int r = 0; r < rooms; r++) {
+                    store.addRoom(r, "Room " + r);
+                }
+                // four rounds, each followed by a checkpoint in the first store, then a short tail
+                for (int round = 0; round < 5; round++) {
+                    long begin = System.nanoTime();
+                    long changes = bookingLoad(store, threads, round < 4 ? operations : operations / 10, eventIds);
+                    long elapsed = System.nanoTime() - begin;
+                    if (directory == snapshotted && round < 4) {
+                        store.checkpoint();
+                    }
+                    if (round == 0 && directory == snapshotted) {
+                        System.out.printf("Durable bookings, %d threads: %,.0f changes/s, %.1f records per fsync%n",
+                                threads, changes * 1e9 / elapsed, (double) store.getLog().getRecordCount() / store.getLog().getSyncCount());
+                    }
+                }
+                before = describe(store);
+            }
+
+            long begin = System.nanoTime();
+            try (BookingLog store = new BookingLog(directory, 0)) {
+                long elapsed = System.nanoTime() - begin;
+                if (!describe(store).equals(before)) {
+                    throw new IllegalStateException("Recovered bookings differ from the ones before the restart");
+                }
+                System.out.printf("Restart %-22s %,9d bookings in %,5d ms%n",
+                        directory == snapshotted ? "from snapshot + tail:" : "replaying the whole log:", before.size(), elapsed / 1_000_000);
+            }
+        }
+
+        // a crash in the middle of a write leaves half a record at the end of the log
+        Path segment;
+        try (Stream<Path> files = Files.list(snapshotted)) {
+            segment = files.filter(path -> path.getFileName().toString().endsWith(".wal")).max(Comparator.naturalOrder()).get();
+        }
+        List<String> before;
+        try (BookingLog store = new BookingLog(snapshotted, 0)) {
+            store.getRoom(0).addEvent(new Event((int) eventIds.incrementAndGet(), "Last word", LocalDateTime.of(2026, 1, 5, 9, 0), LocalDateTime.of(2026, 1, 5, 10, 0)));
+            before = describe(store);
+        }
+        Files.write(segment, new byte[] {0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+        try (BookingLog store = new BookingLog(snapshotted, 0)) {
+            if (!describe(store).equals(before)) {
+                throw new IllegalStateException("Torn record changed the recovered bookings");
+            }
+            store.getRoom(1).addEvent(new Event((int) eventIds.incrementAndGet(), "After crash", LocalDateTime.of(2026, 1, 5, 9, 0), LocalDateTime.of(2026, 1, 5, 10, 0)));
+            before = describe(store);
+        }
+        try (BookingLog store = new BookingLog(snapshotted, 0)) {
+            if (!describe(store).equals(before)) {
+                throw new IllegalStateException("Bookings made after recovering from a torn record were lost");
+            }
+        }
+        System.out.println("Recovered from a torn record and kept logging");
+
+        // a listener added after the log vetoes a booking, which must not come back after a restart
+        LocalDateTime vetoed = LocalDateTime.of(2026, 1, 5, 11, 0);
+        boolean rejected = false;
+        try (BookingLog store = new BookingLog(snapshotted, 0)) {
+            store.getRoom(2).addListener(new BookingListener() {
+                @Override
+                public void beforeCommit(List<Reservation> bookings) {
+                    throw new IllegalArgumentException("Vetoed");
+                }
+
+                @Override
+                public void onBooked(Room room, Event event) {
+                }
+            });
+            try {
+                store.getRoom(2).addEvent(new Event((int) eventIds.incrementAndGet(), "Vetoed", vetoed, vetoed.plusHours(1)));
+            }
+            catch (IllegalArgumentException ex) {
+                rejected = true;
+            }
+        }
+        try (BookingLog store = new BookingLog(snapshotted, 0)) {
+            if (!rejected || !store.getRoom(2).canBeBooked(vetoed, vetoed.plusHours(1))) {
+                throw new IllegalStateException("A booking another listener vetoed was logged");
+            }
+        }
+        System.out.println("A booking vetoed by a later listener was not logged");
+
+        /*
+        The snapshot reads room 1 before a batch books rooms 1 and 5, and room 5 only after the
+        batch's booking there has been cancelled and the slot rebooked. Replaying the batch clashes
+        in room 5, which must not cost room 1 its booking.
+        */
+        LocalDateTime fuzzy = LocalDateTime.of(2026, 1, 7, 9, 0);
+        Event batched = new Event((int) eventIds.incrementAndGet(), "Batch", fuzzy, fuzzy.plusHours(1));
+        Event batchedThere = new Event((int) eventIds.incrementAndGet(), "Batch", fuzzy, fuzzy.plusHours(1));
+        Event rebooked = new Event((int) eventIds.incrementAndGet(), "Rebooked", fuzzy, fuzzy.plusHours(1));
+        try (BookingLog store = new BookingLog(snapshotted, 0)) {
+            Room first = store.getRoom(1);
+            Room fifth = store.getRoom(5);
+            fifth.lock.lock();
+            Thread snapshot;
+            try {
+                snapshot = new Thread(() -> {
+                    try {
+                        store.checkpoint();
+                    }
+                    catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+                snapshot.start();
+                while (!fifth.lock.hasQueuedThreads()) { // the snapshot has read room 1 and waits for room 5
+                    if (!snapshot.isAlive()) {
+                        throw new IllegalStateException("The snapshot did not wait for room 5");
+                    }
+                    Thread.onSpinWait();
+                }
+                bookAll(List.of(new Reservation(first, batched), new Reservation(fifth, batchedThere)));
+                fifth.cancelEvent(batchedThere);
+                fifth.addEvent(rebooked);
+            }
+            finally {
+                fifth.lock.unlock();
+            }
+            snapshot.join();
+        }
+        try (BookingLog store = new BookingLog(snapshotted, 0)) {
+            if (store.getRoom(1).canBeBooked(fuzzy, fuzzy.plusHours(1))
+                    || store.getRoom(5).getBookedEvents().ceiling(rebooked).getId() != rebooked.getId()) {
+                throw new IllegalStateException("A batch clashing with a fuzzy snapshot lost its other rooms");
+            }
+        }
+        System.out.println("A batch clashing with a later state in the snapshot kept its other rooms");
+
+        // a batch the log refuses must not be booked in any of its rooms
+        List<Room> closedRooms;
+        try (BookingLog store = new BookingLog(snapshotted, 0)) {
+            closedRooms = store.getRooms();
+        }
+        LocalDateTime start = LocalDateTime.of(2026, 1, 6, 9, 0);
+        boolean refused = false;
+        try {
+            bookAll(List.of(new Reservation(closedRooms.get(0), new Event((int) eventIds.incrementAndGet(), "Too late", start, start.plusHours(1))),
+                    new Reservation(closedRooms.get(1), new Event((int) eventIds.incrementAndGet(), "Too late", start, start.plusHours(1)))));
+        }
+        catch (IllegalStateException ex) {
+            refused = true;
         }
+        if (!refused || !closedRooms.get(0).canBeBooked(start, start.plusHours(1)) || !closedRooms.get(1).canBeBooked(start, start.plusHours(1))) {
+            throw new IllegalStateException("A batch the log refused was booked");
+        }
+        System.out.println("A batch refused by a closed log booked nothing");
+        deleteDirectory(snapshotted);
+        deleteDirectory(logOnly);
     }
 
-    public static void main(String[] args) {
+    /*
+    Reader threads call canBeBooked on one room with a long history while a writer books a new
+    meeting every millisecond. "locked" wraps each read in the room's lock, which is what every
+    read used to take; "snapshot" is the lock-free read path.
+    */
+    static void contentionBenchmark(int readers, boolean locked) throws InterruptedException {
+        Room room = new Room(1, "Busy Room");
+        LocalDateTime first = LocalDateTime.of(2025, 1, 1, 9, 0);
+        for (int i = 0; i < 2000; i++) {
+            room.addEvent(new Event(i, "Meeting", first.plusHours(i), first.plusHours(i).plusMinutes(30)));
+        }
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong reads = new AtomicLong();
+        Thread writer = new Thread(() -> {
+            for (int i = 0; running.get(); i++) {
+                LocalDateTime start = first.plusHours(i).plusMinutes(30);
+                room.addEvent(new Event(100_000 + i, "Booking", start, start.plusMinutes(15)));
+                LockSupport.parkNanos(1_000_000);
+            }
+        });
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < readers; t++) {
+            int seed = t;
+            threads.add(new Thread(() -> {
+                Random random = new Random(seed);
+                long count = 0;
+                while (running.get()) {
+                    LocalDateTime start = first.plusMinutes(random.nextInt(2000 * 60));
+                    if (locked) {
+                        room.lock.lock();
+                        try {
+                            room.canBeBooked(start, start.plusMinutes(20));
+                        }
+                        finally {
+                            room.lock.unlock();
+                        }
+                    }
+                    else {
+                        room.canBeBooked(start, start.plusMinutes(20));
+                    }
+                    count++;
+                }
+                reads.addAndGet(count);
+            }));
+        }
+        writer.start();
+        threads.forEach(Thread::start);
+        Thread.sleep(1000);
+        running.set(false);
+        writer.join();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.printf("%-8s reads, %d reader threads: %6.2f M reads/s%n", locked ? "locked" : "snapshot", readers, reads.get() / 1e6);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
         Room room = new Room(1, "Conference Room");
 
         Event event1 = new Event(1, "Meeting A", LocalDateTime.of(2025, 2, 6, 9, 0),
@@ -148,5 +1501,18 @@ public class RoomBooking {
         for (Event slot : room.getAvailableTimeSlots(LocalDateTime.of(2025, 2, 6, 0, 0))) {
             System.out.println(slot.getStartTime() + " to " + slot.getEndTime());
         }
+
+        directoryBenchmark(20_000, 5);
+
+        freeSlotsBenchmark();
+
+        batchStressTest(4, 2, 3);
+
+        durabilityBenchmark(2_000, 8, 40_000);
+
+        for (int readers : new int[] {1, 2, 4}) {
+            contentionBenchmark(readers, true);
+            contentionBenchmark(readers, false);
+        }
     }
 }
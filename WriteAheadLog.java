@@ -0,0 +1,568 @@
+package cache.lru;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+public class WriteAheadLog implements AutoCloseable {
+    /*
+    Append-only, checksummed log of mutations plus periodic snapshots, for services that keep all
+    their state in memory.
+    Record: int length | int crc32(body) | body = long lsn | byte type | payload.
+    Appends are queued and written by a single thread. It takes everything queued, writes it
+    through the FileChannel, forces it with one fsync and then completes each append's future,
+    so concurrent appenders share an fsync (group commit) instead of paying for one each.
+    A checkpoint switches to a new segment, has the owner write a snapshot and, once that is
+    on disk, deletes the older segments and snapshots. The writer also switches once a segment
+    reaches MAX_SEGMENT_BYTES, and recovery maps segments a window at a time, so a long run
+    without snapshots never needs a mapping over 2 GiB. A snapshot is handed to its reader as
+    one buffer, so a checkpoint refuses to publish one larger than that. log-<lsn>.wal holds the records from lsn
+    on, and snapshot-<lsn>.bin the state before them. Opening the log memory-maps the newest
+    snapshot and replays only the segments after it. A torn or corrupt record at the end of the
+    last segment is what a crash mid-write leaves; it is cut off so appends continue from a
+    clean end. Anywhere else it means lost records, and opening fails without touching the file.
+    Snapshots are fuzzy: a change logged just after the switch can already be in the snapshot,
+    so replaying a record must be idempotent. The switch and the snapshot run while holding the
+    snapshot writer's monitor, so changes its owner logs under that monitor are exact.
+    A failed write or fsync leaves the log failed: some records of the batch may be on disk
+    and some not, so nothing more is written after them. That batch, everything still queued
+    and every later append fail. The owner may already have applied those changes in memory;
+    only what the log acknowledged survives a restart. A checkpoint waits for every record
+    appended while its snapshot was written to reach the disk before publishing it, so a
+    snapshot never holds a change the log failed to write.
+    */
+
+    public interface Encoder {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    public interface SnapshotReader {
+        void read(ByteBuffer snapshot);
+    }
+
+    public interface Replayer {
+        void replay(byte type, ByteBuffer payload);
+    }
+
+    private static final int HEADER_BYTES = 8; // length + crc
+    private static final int BODY_HEADER_BYTES = 9; // lsn + type
+    private static final int SNAPSHOT_MAGIC = 0x57534e50; // "WSNP"
+    private static final int SNAPSHOT_TRAILER_BYTES = 16; // crc + body length + magic
+    private static final int MAX_BATCH = 4096;
+    private static final long MAX_SEGMENT_BYTES = 256L << 20;
+    private static final int MAP_WINDOW_BYTES = 64 << 20;
+    private static final long MAX_SNAPSHOT_BYTES = Integer.MAX_VALUE - SNAPSHOT_TRAILER_BYTES;
+    private static final byte ROLL = -1;
+    private static final byte CLOSE = -2;
+    private static final byte SYNC = -3;
+
+    private final Path directory;
+    private final Encoder snapshotWriter;
+    private final LinkedBlockingQueue<Pending> pending = new LinkedBlockingQueue<>();
+    private final Object appendLock = new Object();
+    private final Thread writer;
+    private ScheduledExecutorService snapshotService;
+    private FileChannel channel; // owned by the writer thread once it runs
+    private long segmentBytes; // written to channel so far, same owner
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    private final CRC32 crc = new CRC32();
+    private long nextLsn; // guarded by appendLock
+    private boolean closed; // guarded by appendLock
+    private volatile Exception failure; // set once by the writer; appends are refused from then on
+    private volatile long snapshotLsn;
+    private volatile long records;
+    private volatile long syncs;
+
+    private static final class Pending {
+        final long lsn;
+        final byte type;
+        final byte[] payload; // null for ROLL, CLOSE and SYNC
+        final CompletableFuture<Long> done = new CompletableFuture<>();
+
+        Pending(long lsn, byte type, byte[] payload)
+        {
+            this.lsn = lsn;
+            this.type = type;
+            this.payload = payload;
+        }
+    }
+
+    // loads the latest snapshot into reader and replays the log after it before returning
+    public WriteAheadLog(Path directory, SnapshotReader reader, Replayer replayer, Encoder snapshotWriter) throws IOException
+    {
+        this.directory = directory;
+        this.snapshotWriter = snapshotWriter;
+        Files.createDirectories(directory);
+
+        TreeMap<Long, Path> snapshots = list("snapshot-", ".bin");
+        long lsn = 1;
+        for (Long candidate : snapshots.descendingKeySet()) {
+            if (loadSnapshot(snapshots.get(candidate), reader)) {
+                lsn = candidate;
+                break;
+            }
+            System.err.println("Failed to load snapshot " + snapshots.get(candidate) + ": checksum mismatch");
+        }
+        this.snapshotLsn = lsn;
+
+        Path segment = null;
+        TreeMap<Long, Path> segments = list("log-", ".wal");
+        for (Path path : segments.tailMap(lsn).values()) {
+            long start = parseLsn(path, "log-", ".wal");
+            if (start != lsn) {
+                throw new IOException("Log records " + lsn + " to " + (start - 1) + " are missing");
+            }
+            lsn = replaySegment(path, replayer, path.equals(segments.lastEntry().getValue()));
+            segment = path;
+        }
+        this.nextLsn = lsn;
+
+        // append to the last segment, or start the first one after the snapshot
+        if (segment == null) {
+            segment = segmentPath(lsn);
+        }
+        this.channel = FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        this.segmentBytes = channel.size();
+        this.writer = new Thread(this::writeLoop, "wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // writes a snapshot every period, if anything was logged since the last one
+    public void scheduleSnapshots(long period, TimeUnit unit)
+    {
+        synchronized (appendLock) {
+            if (snapshotService != null) {
+                throw new IllegalStateException("Snapshots are already scheduled.");
+            }
+            snapshotService = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wal-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        snapshotService.scheduleWithFixedDelay(() -> {
+            try {
+                checkpoint();
+            }
+            catch (IOException | RuntimeException ex) {
+                System.err.println("Failed to write snapshot: " + ex.getMessage());
+            }
+        }, period, period, unit);
+    }
+
+    // completes with the record's lsn once it is on disk
+    public CompletableFuture<Long> append(byte type, byte[] payload)
+    {
+        if (type < 0) {
+            throw new IllegalArgumentException("Record types must not be negative.");
+        }
+        synchronized (appendLock) {
+            checkWritable();
+            Pending record = new Pending(nextLsn++, type, payload);
+            pending.add(record);
+            return record.done;
+        }
+    }
+
+    public CompletableFuture<Long> append(byte type, Encoder payload)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            payload.write(new DataOutputStream(bytes));
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex); // a byte array stream does not throw
+        }
+        return append(type, bytes.toByteArray());
+    }
+
+    // switches segments and writes a snapshot of everything logged before the switch
+    public void checkpoint() throws IOException
+    {
+        synchronized (snapshotWriter) {
+            synchronized (appendLock) {
+                if (nextLsn == snapshotLsn) {
+                    return; // nothing logged since the last snapshot
+                }
+            }
+            long lsn = enqueueMarker(ROLL).join();
+
+            Path temp = directory.resolve("snapshot-" + lsn + ".tmp");
+            try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(Channels.newOutputStream(file), 1 << 16), new CRC32());
+                DataOutputStream out = new DataOutputStream(checked);
+                snapshotWriter.write(out);
+                out.flush();
+                if (file.position() > MAX_SNAPSHOT_BYTES) {
+                    throw new IOException("Snapshot of " + file.position() + " bytes is too large to load; keeping the log instead");
+                }
+                ByteBuffer trailer = ByteBuffer.allocate(SNAPSHOT_TRAILER_BYTES);
+                trailer.putInt((int) checked.getChecksum().getValue()).putLong(file.position()).putInt(SNAPSHOT_MAGIC).flip();
+                while (trailer.hasRemaining()) {
+                    file.write(trailer);
+                }
+                file.force(true);
+                // the snapshot may hold changes whose records were still queued; it must not outlive a failed write of one
+                enqueueMarker(SYNC).join();
+            }
+            catch (IOException | RuntimeException ex) {
+                Files.deleteIfExists(temp);
+                throw ex;
+            }
+            Files.move(temp, directory.resolve("snapshot-" + lsn + ".bin"), StandardCopyOption.ATOMIC_MOVE);
+            forceDirectory();
+            snapshotLsn = lsn;
+
+            for (Path old : list("snapshot-", ".bin").headMap(lsn).values()) {
+                Files.deleteIfExists(old);
+            }
+            for (Path old : list("log-", ".wal").headMap(lsn).values()) {
+                Files.deleteIfExists(old);
+            }
+        }
+    }
+
+    public long getRecordCount()
+    {
+        return records;
+    }
+
+    public long getSyncCount()
+    {
+        return syncs;
+    }
+
+    // waits for everything appended so far to reach the disk, then stops the writer
+    @Override
+    public void close()
+    {
+        if (snapshotService != null) {
+            snapshotService.shutdown();
+            try {
+                snapshotService.awaitTermination(1, TimeUnit.MINUTES);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        CompletableFuture<Long> stopped;
+        synchronized (appendLock) {
+            if (closed) {
+                return;
+            }
+            // also after a failure, so the writer still stops
+            Pending marker = new Pending(nextLsn, CLOSE, null);
+            pending.add(marker);
+            stopped = marker.done;
+            closed = true;
+        }
+        stopped.join();
+        try {
+            writer.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(ByteBuffer in)
+    {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // caller holds appendLock
+    private void checkWritable()
+    {
+        if (closed) {
+            throw new IllegalStateException("Log is closed.");
+        }
+        if (failure != null) {
+            throw new IllegalStateException("Log failed: " + failure, failure);
+        }
+    }
+
+    private CompletableFuture<Long> enqueueMarker(byte type)
+    {
+        synchronized (appendLock) {
+            checkWritable();
+            Pending marker = new Pending(nextLsn, type, null);
+            pending.add(marker);
+            return marker.done;
+        }
+    }
+
+    private void writeLoop()
+    {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+            }
+            catch (InterruptedException ex) {
+                return;
+            }
+            pending.drainTo(batch, MAX_BATCH - 1);
+            if (failure != null) {
+                if (failBatch(batch)) {
+                    return;
+                }
+                batch.clear();
+                continue;
+            }
+            int done = 0;
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    Pending record = batch.get(i);
+                    if (record.payload == null) {
+                        sync(batch, done, i);
+                        done = i;
+                        if (record.type == CLOSE) {
+                            try {
+                                channel.close();
+                            }
+                            catch (IOException ex) {
+                                System.err.println("Failed to close log: " + ex.getMessage());
+                            }
+                            record.done.complete(record.lsn);
+                            return;
+                        }
+                        if (record.type != SYNC) {
+                            roll(record.lsn);
+                        }
+                        record.done.complete(record.lsn);
+                        done = i + 1;
+                        continue;
+                    }
+                    int size = HEADER_BYTES + BODY_HEADER_BYTES + record.payload.length;
+                    if (segmentBytes > 0 && segmentBytes + size > MAX_SEGMENT_BYTES) {
+                        // the full segment is forced before the next one starts, so only the last can have a torn tail
+                        sync(batch, done, i);
+                        done = i;
+                        roll(record.lsn);
+                    }
+                    segmentBytes += size;
+                    if (buffer.remaining() < size) {
+                        writeBuffer();
+                        if (buffer.capacity() < size) {
+                            buffer = ByteBuffer.allocateDirect(size);
+                        }
+                    }
+                    encode(record, size);
+                }
+                sync(batch, done, batch.size());
+            }
+            catch (IOException | RuntimeException ex) {
+                System.err.println("Failed to write log: " + ex.getMessage() + "; refusing further appends");
+                buffer.clear();
+                failure = ex;
+                if (failBatch(batch.subList(done, batch.size()))) {
+                    return;
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    // after a failure: fails every record, closes on CLOSE and returns true if it saw one
+    private boolean failBatch(List<Pending> batch)
+    {
+        for (Pending record : batch) {
+            if (record.type == CLOSE && record.payload == null) {
+                try {
+                    channel.close();
+                }
+                catch (IOException ex) {
+                    // already failed
+                }
+                record.done.complete(record.lsn);
+                return true;
+            }
+            record.done.completeExceptionally(failure);
+        }
+        return false;
+    }
+
+    private void roll(long lsn) throws IOException
+    {
+        channel.close();
+        channel = FileChannel.open(segmentPath(lsn), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        forceDirectory();
+        segmentBytes = 0;
+    }
+
+    private void encode(Pending record, int size)
+    {
+        int start = buffer.position();
+        buffer.putInt(size - HEADER_BYTES).putInt(0).putLong(record.lsn).put(record.type).put(record.payload);
+        crc.reset();
+        crc.update(buffer.duplicate().position(start + HEADER_BYTES).limit(start + size));
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    // writes and forces the buffered records, then tells batch[from, to) they are durable
+    private void sync(List<Pending> batch, int from, int to) throws IOException
+    {
+        if (from == to) {
+            return;
+        }
+        writeBuffer();
+        channel.force(false);
+        syncs++;
+        records += to - from;
+        for (int i = from; i < to; i++) {
+            batch.get(i).done.complete(batch.get(i).lsn);
+        }
+    }
+
+    private void writeBuffer() throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static boolean loadSnapshot(Path path, SnapshotReader reader) throws IOException
+    {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            if (size < SNAPSHOT_TRAILER_BYTES) {
+                return false;
+            }
+            MappedByteBuffer map = file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int bodyLength = (int) (size - SNAPSHOT_TRAILER_BYTES);
+            if (map.getInt(bodyLength + 12) != SNAPSHOT_MAGIC || map.getLong(bodyLength + 4) != bodyLength) {
+                return false;
+            }
+            ByteBuffer body = map.slice(0, bodyLength);
+            CRC32 checksum = new CRC32();
+            checksum.update(body.duplicate());
+            if ((int) checksum.getValue() != map.getInt(bodyLength)) {
+                return false;
+            }
+            reader.read(body);
+            return true;
+        }
+    }
+
+    // replays every intact record and returns the next lsn; a bad record ends the last segment and fails any other
+    private static long replaySegment(Path path, Replayer replayer, boolean last) throws IOException
+    {
+        long expectedLsn = parseLsn(path, "log-", ".wal");
+        try (FileChannel file = last ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+            MappedByteBuffer map = null;
+            long mapStart = 0;
+            CRC32 checksum = new CRC32();
+            long position = 0;
+            while (size - position >= HEADER_BYTES) {
+                if (map == null || position + HEADER_BYTES > mapStart + map.limit()) {
+                    map = mapWindow(file, position, HEADER_BYTES);
+                    mapStart = position;
+                }
+                int length = map.getInt((int) (position - mapStart));
+                if (length < BODY_HEADER_BYTES || length > size - position - HEADER_BYTES) {
+                    break;
+                }
+                // remap so the whole record is in the window
+                if (position + HEADER_BYTES + length > mapStart + map.limit()) {
+                    map = mapWindow(file, position, HEADER_BYTES + length);
+                    mapStart = position;
+                }
+                int offset = (int) (position - mapStart);
+                ByteBuffer body = map.slice(offset + HEADER_BYTES, length);
+                checksum.reset();
+                checksum.update(body.duplicate());
+                if ((int) checksum.getValue() != map.getInt(offset + 4) || body.getLong(0) != expectedLsn) {
+                    break;
+                }
+                replayer.replay(body.get(8), body.position(BODY_HEADER_BYTES).slice());
+                expectedLsn++;
+                position += HEADER_BYTES + length;
+            }
+            if (position < size && !last) {
+                throw new IOException("Log segment " + path + " is corrupt at byte " + position + " (record " + expectedLsn + ") and is not the last one");
+            }
+            if (position < size) {
+                System.err.println("Failed to read " + path + " past byte " + position + ": torn or corrupt record, truncating");
+                file.truncate(position);
+                file.force(true);
+            }
+        }
+        return expectedLsn;
+    }
+
+    // maps MAP_WINDOW_BYTES from position on, or minBytes if more, cut off at the end of the file
+    private static MappedByteBuffer mapWindow(FileChannel file, long position, int minBytes) throws IOException
+    {
+        long length = Math.min(file.size() - position, Math.max(MAP_WINDOW_BYTES, minBytes));
+        return file.map(FileChannel.MapMode.READ_ONLY, position, length);
+    }
+
+    private TreeMap<Long, Path> list(String prefix, String suffix) throws IOException
+    {
+        TreeMap<Long, Path> lsnVsPath = new TreeMap<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(path -> path.getFileName().toString().startsWith(prefix) && path.getFileName().toString().endsWith(suffix))
+                    .forEach(path -> lsnVsPath.put(parseLsn(path, prefix, suffix), path));
+        }
+        return lsnVsPath;
+    }
+
+    private static long parseLsn(Path path, String prefix, String suffix)
+    {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+    }
+
+    private Path segmentPath(long lsn)
+    {
+        return directory.resolve("log-" + lsn + ".wal");
+    }
+
+    // makes created and renamed files survive a crash; not every platform can open a directory
+    private void forceDirectory()
+    {
+        try (FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ)) {
+            dir.force(true);
+        }
+        catch (IOException ex) {
+            // best effort
+        }
+    }
+}